@@ -0,0 +1,375 @@
+
+package com.esotericsoftware.scar;
+
+import static com.esotericsoftware.minlog.Log.*;
+import static com.esotericsoftware.scar.Scar.*;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import com.esotericsoftware.wildcard.Paths;
+
+/** Computes a hash of the application binary interface (ABI) of class files: the classes, their members, signatures, constant
+ * values, and annotations. Method bodies and private or synthetic classes and members are not included, so the hash only changes
+ * when code compiled against the classes could be affected. Package-private classes and members are included, since code in the
+ * same package in another project can use them. */
+public class Abi {
+	static private final int classAccess = 0x0001 | 0x0010 | 0x0200 | 0x0400 | 0x2000 | 0x4000 | 0x8000;
+	static private final int fieldAccess = 0x0001 | 0x0004 | 0x0008 | 0x0010 | 0x4000;
+	static private final int methodAccess = 0x0001 | 0x0004 | 0x0008 | 0x0010 | 0x0080 | 0x0400;
+	static private final int synthetic = 0x1000;
+
+	/** Returns the ABI hash of the class files in the specified paths. Files that are not class files are ignored. */
+	static public String hash (Paths classFiles) throws IOException {
+		if (classFiles == null) throw new IllegalArgumentException("classFiles cannot be null.");
+
+		ArrayList<String> classes = new ArrayList();
+		for (String file : classFiles.filesOnly()) {
+			if (!file.endsWith(".class")) continue;
+			String abi = describe(readBytes(file));
+			if (abi != null) classes.add(abi);
+		}
+		return digest(classes);
+	}
+
+	/** Returns the ABI hash of the class files in the specified JAR. */
+	static public String hashJar (String jarFile) throws IOException {
+		if (jarFile == null) throw new IllegalArgumentException("jarFile cannot be null.");
+
+		ArrayList<String> classes = new ArrayList();
+		JarFile jar = new JarFile(jarFile);
+		try {
+			for (Enumeration<JarEntry> entries = jar.entries(); entries.hasMoreElements();) {
+				JarEntry entry = entries.nextElement();
+				if (!entry.getName().endsWith(".class")) continue;
+				ByteArrayOutputStream output = new ByteArrayOutputStream((int)Math.max(entry.getSize(), 256));
+				copyStream(jar.getInputStream(entry), output);
+				String abi = describe(output.toByteArray());
+				if (abi != null) classes.add(abi);
+			}
+		} finally {
+			jar.close();
+		}
+		return digest(classes);
+	}
+
+	/** Returns a string that changes when the ABI of any of the classpath files changes. JAR and class files are described by
+	 * their relative path and ABI hash, other files by their relative path, size, and modification time. ABI hashes are cached in
+	 * the specified file by size and modification time, so a JAR is only read again after it has been modified.
+	 * @param cacheFile May be null. */
+	static public String stamp (Paths classpath, String cacheFile) throws IOException {
+		if (classpath == null) throw new IllegalArgumentException("classpath cannot be null.");
+
+		HashMap<String, String[]> cache = new HashMap();
+		if (cacheFile != null && fileExists(cacheFile)) {
+			BufferedReader reader = new BufferedReader(new FileReader(cacheFile));
+			try {
+				while (true) {
+					String line = reader.readLine();
+					if (line == null) break;
+					String[] values = line.split("\t");
+					if (values.length == 4) cache.put(values[0], values);
+				}
+			} finally {
+				try {
+					reader.close();
+				} catch (Exception ignored) {
+				}
+			}
+		}
+
+		List<String> files = classpath.getPaths(), names = classpath.getRelativePaths();
+		ArrayList<String> entries = new ArrayList(files.size());
+		StringBuilder cacheBuffer = new StringBuilder(files.size() * 128);
+		boolean changed = false;
+		for (int i = 0, n = files.size(); i < n; i++) {
+			String path = files.get(i);
+			File file = new File(path);
+			String length = String.valueOf(file.length()), lastModified = String.valueOf(file.lastModified());
+			String hash;
+			String[] cached = cache.get(path);
+			if (cached != null && cached[1].equals(length) && cached[2].equals(lastModified))
+				hash = cached[3];
+			else {
+				String name = path.toLowerCase();
+				if (name.endsWith(".jar") && file.isFile())
+					hash = hashJar(path);
+				else if (name.endsWith(".class") && file.isFile())
+					hash = hash(new Paths().addFile(path));
+				else
+					hash = length + "," + lastModified;
+				if (cached != null && DEBUG) {
+					if (cached[3].equals(hash))
+						debug("scar", "Classpath file modified, ABI unchanged: " + path);
+					else
+						debug("scar", "Classpath file ABI changed: " + path);
+				}
+				changed = true;
+			}
+			entries.add(names.get(i).replace('\\', '/') + ',' + hash);
+			cacheBuffer.append(path).append('\t').append(length).append('\t').append(lastModified).append('\t').append(hash)
+				.append('\n');
+		}
+		if (cacheFile != null && (changed || cache.size() != files.size())) {
+			mkdir(new File(cacheFile).getParent());
+			BufferedWriter writer = new BufferedWriter(new FileWriter(cacheFile));
+			try {
+				writer.write(cacheBuffer.toString());
+			} finally {
+				try {
+					writer.close();
+				} catch (Exception ignored) {
+				}
+			}
+		}
+		Collections.sort(entries);
+		StringBuilder buffer = new StringBuilder(entries.size() * 64);
+		for (String entry : entries)
+			buffer.append('|').append(entry);
+		return buffer.toString();
+	}
+
+	static private String digest (List<String> classes) {
+		Collections.sort(classes);
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new RuntimeException(ex);
+		}
+		try {
+			for (String abi : classes)
+				digest.update(abi.getBytes("UTF-8"));
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+		StringBuilder buffer = new StringBuilder(40);
+		for (byte b : digest.digest()) {
+			buffer.append(Character.forDigit((b >> 4) & 0xf, 16));
+			buffer.append(Character.forDigit(b & 0xf, 16));
+		}
+		return buffer.toString();
+	}
+
+	/** Returns a description of the ABI of the specified class file, or null if the class is private or synthetic. */
+	static String describe (byte[] bytes) throws IOException {
+		DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes));
+		if (input.readInt() != 0xCAFEBABE) throw new IOException("Invalid class file.");
+		input.readUnsignedShort(); // Minor version.
+		int major = input.readUnsignedShort();
+		ConstantPool pool = new ConstantPool(input);
+
+		int access = input.readUnsignedShort();
+		String name = pool.className(input.readUnsignedShort());
+		if ((access & synthetic) != 0) return null;
+
+		StringBuilder buffer = new StringBuilder(1024);
+		buffer.append("class ").append(name).append(' ').append(access & classAccess).append(' ').append(major);
+		int superIndex = input.readUnsignedShort();
+		if (superIndex != 0) buffer.append(" extends ").append(pool.className(superIndex));
+		for (int i = 0, n = input.readUnsignedShort(); i < n; i++)
+			buffer.append(i == 0 ? " implements " : ",").append(pool.className(input.readUnsignedShort()));
+		buffer.append('\n');
+
+		ArrayList<String> members = new ArrayList();
+		for (int m = 0; m < 2; m++) {
+			boolean field = m == 0;
+			for (int i = 0, n = input.readUnsignedShort(); i < n; i++) {
+				int memberAccess = input.readUnsignedShort();
+				String memberName = pool.utf8(input.readUnsignedShort());
+				String descriptor = pool.utf8(input.readUnsignedShort());
+				boolean visible = (memberAccess & (0x0002 | synthetic)) == 0;
+				StringBuilder member = visible ? new StringBuilder(128) : null;
+				if (visible) {
+					member.append(field ? "field " : "method ").append(memberName).append(descriptor).append(' ')
+						.append(memberAccess & (field ? fieldAccess : methodAccess));
+				}
+				attributes(input, pool, member, null);
+				if (visible) members.add(member.toString());
+			}
+		}
+		Collections.sort(members);
+
+		// A private nested class is package-private in its class file, only the InnerClasses attribute shows it is private.
+		if (attributes(input, pool, buffer, name)) return null;
+		for (String member : members)
+			buffer.append('\n').append(member);
+		buffer.append('\n');
+		return buffer.toString();
+	}
+
+	/** Reads the attributes, appending the ones that are part of the ABI to the buffer.
+	 * @param buffer May be null to skip the attributes.
+	 * @param className May be null. The class the attributes are for.
+	 * @return true if the InnerClasses attribute shows the class is private. */
+	static private boolean attributes (DataInputStream input, ConstantPool pool, StringBuilder buffer, String className)
+		throws IOException {
+		boolean isPrivate = false;
+		for (int i = 0, n = input.readUnsignedShort(); i < n; i++) {
+			String name = pool.utf8(input.readUnsignedShort());
+			int length = input.readInt();
+			if (buffer == null) {
+				input.skipBytes(length);
+				continue;
+			}
+			if (name.equals("ConstantValue")) {
+				buffer.append(" = ").append(pool.constant(input.readUnsignedShort()));
+			} else if (name.equals("Signature")) {
+				buffer.append(" signature ").append(pool.utf8(input.readUnsignedShort()));
+			} else if (name.equals("Exceptions")) {
+				buffer.append(" throws");
+				for (int ii = 0, nn = input.readUnsignedShort(); ii < nn; ii++)
+					buffer.append(' ').append(pool.className(input.readUnsignedShort()));
+			} else if (name.equals("RuntimeVisibleAnnotations") || name.equals("RuntimeInvisibleAnnotations")) {
+				buffer.append(" @[");
+				for (int ii = 0, nn = input.readUnsignedShort(); ii < nn; ii++)
+					annotation(input, pool, buffer);
+				buffer.append(']');
+			} else if (name.equals("RuntimeVisibleParameterAnnotations")
+				|| name.equals("RuntimeInvisibleParameterAnnotations")) {
+				buffer.append(" @(");
+				for (int p = 0, pn = input.readUnsignedByte(); p < pn; p++) {
+					buffer.append('[');
+					for (int ii = 0, nn = input.readUnsignedShort(); ii < nn; ii++)
+						annotation(input, pool, buffer);
+					buffer.append(']');
+				}
+				buffer.append(')');
+			} else if (name.equals("AnnotationDefault")) {
+				buffer.append(" default ");
+				elementValue(input, pool, buffer);
+			} else if (name.equals("InnerClasses")) {
+				for (int ii = 0, nn = input.readUnsignedShort(); ii < nn; ii++) {
+					int innerIndex = input.readUnsignedShort();
+					input.readUnsignedShort(); // Outer class.
+					input.readUnsignedShort(); // Simple name.
+					int innerAccess = input.readUnsignedShort();
+					if ((innerAccess & (0x0002 | synthetic)) == 0)
+						buffer.append(" inner ").append(pool.className(innerIndex)).append(' ').append(innerAccess);
+					else if ((innerAccess & 0x0002) != 0 && pool.className(innerIndex).equals(className)) //
+						isPrivate = true;
+				}
+			} else
+				input.skipBytes(length);
+		}
+		return isPrivate;
+	}
+
+	static private void annotation (DataInputStream input, ConstantPool pool, StringBuilder buffer) throws IOException {
+		buffer.append('@').append(pool.utf8(input.readUnsignedShort())).append('(');
+		for (int i = 0, n = input.readUnsignedShort(); i < n; i++) {
+			if (i > 0) buffer.append(',');
+			buffer.append(pool.utf8(input.readUnsignedShort())).append('=');
+			elementValue(input, pool, buffer);
+		}
+		buffer.append(')');
+	}
+
+	static private void elementValue (DataInputStream input, ConstantPool pool, StringBuilder buffer) throws IOException {
+		char tag = (char)input.readUnsignedByte();
+		switch (tag) {
+		case 'e':
+			buffer.append(pool.utf8(input.readUnsignedShort())).append('.').append(pool.utf8(input.readUnsignedShort()));
+			break;
+		case 'c':
+			buffer.append(pool.utf8(input.readUnsignedShort())).append(".class");
+			break;
+		case '@':
+			annotation(input, pool, buffer);
+			break;
+		case '[':
+			buffer.append('{');
+			for (int i = 0, n = input.readUnsignedShort(); i < n; i++) {
+				if (i > 0) buffer.append(',');
+				elementValue(input, pool, buffer);
+			}
+			buffer.append('}');
+			break;
+		default:
+			buffer.append(tag).append(pool.constant(input.readUnsignedShort()));
+		}
+	}
+
+	static private class ConstantPool {
+		final Object[] values;
+		final int[] classIndexes;
+
+		ConstantPool (DataInputStream input) throws IOException {
+			int count = input.readUnsignedShort();
+			values = new Object[count];
+			classIndexes = new int[count];
+			for (int i = 1; i < count; i++) {
+				int tag = input.readUnsignedByte();
+				switch (tag) {
+				case 1: // Utf8
+					values[i] = input.readUTF();
+					break;
+				case 3: // Integer
+					values[i] = input.readInt();
+					break;
+				case 4: // Float
+					values[i] = input.readFloat();
+					break;
+				case 5: // Long
+					values[i++] = input.readLong();
+					break;
+				case 6: // Double
+					values[i++] = input.readDouble();
+					break;
+				case 7: // Class
+					classIndexes[i] = input.readUnsignedShort();
+					break;
+				case 8: // String
+				case 16: // MethodType
+				case 19: // Module
+				case 20: // Package
+					classIndexes[i] = input.readUnsignedShort();
+					break;
+				case 9: // Fieldref
+				case 10: // Methodref
+				case 11: // InterfaceMethodref
+				case 12: // NameAndType
+				case 17: // Dynamic
+				case 18: // InvokeDynamic
+					input.readInt();
+					break;
+				case 15: // MethodHandle
+					input.readUnsignedByte();
+					input.readUnsignedShort();
+					break;
+				default:
+					throw new IOException("Invalid constant pool tag: " + tag);
+				}
+			}
+		}
+
+		String utf8 (int index) {
+			return (String)values[index];
+		}
+
+		String className (int index) {
+			return utf8(classIndexes[index]);
+		}
+
+		String constant (int index) {
+			if (values[index] == null) return '"' + utf8(classIndexes[index]) + '"'; // String.
+			return String.valueOf(values[index]);
+		}
+	}
+}
@@ -1,13 +1,28 @@
 
 package com.esotericsoftware.scar;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import com.esotericsoftware.scar.Scar.CompileListener;
 import com.esotericsoftware.wildcard.Paths;
 
 import static com.esotericsoftware.minlog.Log.*;
@@ -16,51 +31,80 @@ import static com.esotericsoftware.scar.Scar.*;
 public class Build extends Project {
 	/** List of project names that have been built. {@link Build#buildDependencies(Project)} will skip any projects with a matching
 	 * name. */
-	static public final List<String> builtProjects = new ArrayList();
+	static public final List<String> builtProjects = Collections.synchronizedList(new ArrayList());
+
+	/** The cache used by {@link #compile(Project)} and {@link #jar(Project)} for projects with the "cache" property. */
+	static public BuildCache cache = new BuildCache(System.getProperty("user.home") + "/.scar/cache", 1024 * 1024 * 1024);
+
+	/** The projects loaded by {@link #project(String)}, so each project file is only parsed again after it changes. Snapshots
+	 * are stored in "~/.scar/projects" so later runs also don't parse unchanged project files. */
+	static public ProjectRegistry projects = new ProjectRegistry(System.getProperty("user.home") + "/.scar/projects");
 
-	/** Loads the specified project with default values and loads any other projects needed for the "include" property.
+	/** Loads the specified project with default values and loads any other projects needed for the "include" property. The
+	 * project is kept in {@link #projects} and is loaded again only if its YAML file or an included file changes. Dependencies
+	 * whose JAR is already on the classpath are removed, which is also kept until a file it depends on changes.
 	 * @param path Path to a YAML project file, or a directory containing a "project.yaml" file. */
 	static public Project project (String path) throws IOException {
 		if (path == null) throw new IllegalArgumentException("path cannot be null.");
+		return project(path, new HashMap());
+	}
 
-		Project defaults = new Project();
-
-		File file = new File(canonical(path));
-		if (file.isDirectory()) {
-			String name = file.getName();
-			defaults.set("name", name);
-			defaults.set("target", file.getParent() + "/target/" + name + "/");
-		} else {
-			String name = file.getParentFile().getName();
-			defaults.set("name", name);
-			defaults.set("target", file.getParentFile().getParent() + "/target/" + name + "/");
+	/** @param resolved The projects already returned by this method by canonical path, so each dependency is resolved once. */
+	static private Project project (String path, HashMap<String, Project> resolved) throws IOException {
+		String key = canonical(path);
+		Project project = resolved.get(key);
+		if (project != null) return project;
+		project = projects.getResolved(path);
+		if (project != null) {
+			if (TRACE) trace("scar", "Project is up to date: " + project);
+			resolved.put(key, project);
+			return project;
 		}
 
-		ArrayList libs = new ArrayList();
-		libs.add("lib|**/*.jar");
-		libs.add("libs|**/*.jar");
-		defaults.set("classpath", libs);
+		project = projects.get(path);
+		if (project == null) {
+			Project defaults = new Project();
+
+			File file = new File(canonical(path));
+			if (file.isDirectory()) {
+				String name = file.getName();
+				defaults.set("name", name);
+				defaults.set("target", file.getParent() + "/target/" + name + "/");
+			} else {
+				String name = file.getParentFile().getName();
+				defaults.set("name", name);
+				defaults.set("target", file.getParentFile().getParent() + "/target/" + name + "/");
+			}
+
+			ArrayList libs = new ArrayList();
+			libs.add("lib|**/*.jar");
+			libs.add("libs|**/*.jar");
+			defaults.set("classpath", libs);
 
-		defaults.set("dist", "dist");
+			defaults.set("dist", "dist");
 
-		ArrayList source = new ArrayList();
-		source.add("src|**/*.java");
-		source.add("src/main/java|**/*.java");
-		defaults.set("source", source);
+			ArrayList source = new ArrayList();
+			source.add("src|**/*.java");
+			source.add("src/main/java|**/*.java");
+			defaults.set("source", source);
 
-		ArrayList resources = new ArrayList();
-		resources.add("assets");
-		resources.add("resources");
-		resources.add("src/main/resources");
-		defaults.set("resources", resources);
+			ArrayList resources = new ArrayList();
+			resources.add("assets");
+			resources.add("resources");
+			resources.add("src/main/resources");
+			defaults.set("resources", resources);
 
-		Project project = project(path, defaults);
+			LinkedHashSet<String> files = new LinkedHashSet();
+			project = project(path, defaults, files);
+			projects.put(path, project, files);
+		}
 
 		// Remove dependency if a JAR of the same name is on the classpath.
-		Paths classpath = project.getPaths("classpath");
-		classpath.add(dependencyClasspaths(project, classpath, false, false));
-		for (String dependency : project.getList("dependencies")) {
-			String dependencyName = project(project.path(dependency)).get("name");
+		Paths classpath = new OrderedPaths();
+		LinkedHashSet<String> inputs = new LinkedHashSet();
+		classpath(project, classpath, false, false, new HashSet(), new HashSet(), resolved, inputs);
+		for (String dependency : new ArrayList<String>(project.getList("dependencies"))) {
+			String dependencyName = project(project.path(dependency), resolved).get("name");
 			for (String classpathFile : classpath) {
 				String name = fileWithoutExtension(classpathFile);
 				int dashIndex = name.lastIndexOf('-');
@@ -75,16 +119,29 @@ public class Build extends Project {
 				}
 			}
 		}
-
+		projects.putResolved(path, project, inputs);
+		resolved.put(key, project);
 		return project;
 	}
 
 	/** Loads the specified project with the specified defaults and loads any other projects needed for the "include" property.
 	 * @param path Path to a YAML project file, or a directory containing a "project.yaml" file. */
 	static public Project project (String path, Project defaults) throws IOException {
+		return project(path, defaults, null);
+	}
+
+	/** @param files May be null. If not null, the YAML files the project is loaded from are added, including "include.yaml" files
+	 *           in parent directories that do not exist, so creating one can be detected. */
+	static private Project project (String path, Project defaults, Collection<String> files) throws IOException {
 		if (path == null) throw new IllegalArgumentException("path cannot be null.");
 		if (defaults == null) throw new IllegalArgumentException("defaults cannot be null.");
 
+		if (files != null) {
+			File file = new File(path);
+			if (!file.exists() && !path.endsWith(".yaml")) file = new File(path + ".yaml");
+			if (file.isDirectory()) file = new File(file, "project.yaml");
+			files.add(file.getAbsolutePath());
+		}
 		Project actualProject = new Project(path);
 
 		Project project = new Project();
@@ -93,9 +150,10 @@ public class Build extends Project {
 		File parent = new File(actualProject.getDirectory()).getParentFile();
 		while (parent != null) {
 			File includeFile = new File(parent, "include.yaml");
+			if (files != null) files.add(includeFile.getAbsolutePath());
 			if (includeFile.exists()) {
 				try {
-					project.replace(project(includeFile.getAbsolutePath(), defaults));
+					project.replace(project(includeFile.getAbsolutePath(), defaults, files));
 				} catch (RuntimeException ex) {
 					throw new RuntimeException("Error loading included project: " + includeFile.getAbsolutePath(), ex);
 				}
@@ -105,7 +163,7 @@ public class Build extends Project {
 
 		for (String include : actualProject.getList("include")) {
 			try {
-				project.replace(project(actualProject.path(include), defaults));
+				project.replace(project(actualProject.path(include), defaults, files));
 			} catch (RuntimeException ex) {
 				throw new RuntimeException("Error loading included project: " + actualProject.path(include), ex);
 			}
@@ -120,41 +178,99 @@ public class Build extends Project {
 
 		if (INFO) info(project.toString(), "Clean");
 		if (TRACE) trace(project.toString(), "Deleting: " + project.path("$target$"));
-		paths(project.path("$target$")).delete();
+		Tracer.Span span = Tracer.span("build", "clean", project.toString());
+		try {
+			paths(project.path("$target$")).delete();
+		} finally {
+			span.end();
+		}
 	}
 
-	/** Computes the classpath for the specified project and all its dependency projects, recursively. */
+	/** Computes the classpath for the specified project and all its dependency projects, recursively. Each dependency project is
+	 * visited once, even if it is reached through multiple dependency paths, and each file is added once with a canonical
+	 * directory. The files are in order: the project's classpath, then for each dependency its JARs followed by its classpath.
+	 * @return {@link OrderedPaths}. */
 	static public Paths classpath (Project project, boolean errorIfDepenenciesNotBuilt) throws IOException {
 		if (project == null) throw new IllegalArgumentException("project cannot be null.");
 
-		Paths classpath = project.getPaths("classpath");
-		classpath.add(dependencyClasspaths(project, classpath, true, errorIfDepenenciesNotBuilt));
+		Paths classpath = new OrderedPaths();
+		classpath(project, classpath, true, errorIfDepenenciesNotBuilt, new HashSet(), new HashSet(), new HashMap(), null);
 		return classpath;
 	}
 
-	/** Computes the classpath for all the dependencies of the specified project, recursively. */
-	static private Paths dependencyClasspaths (Project project, Paths paths, boolean includeDependencyJAR,
-		boolean errorIfDepenenciesNotBuilt) throws IOException {
+	/** Adds the classpath for the project and its dependencies, recursively.
+	 * @param includeDependencyJAR If true, the JARs in the target directory of each direct dependency are added. The JARs of
+	 *           dependencies further down are always added.
+	 * @param visited The canonical paths of the dependency projects already added.
+	 * @param files The canonical paths of the files already added.
+	 * @param resolved The dependency projects already loaded, see {@link #project(String, HashMap)}.
+	 * @param inputs May be null. If not null, the project files and directories the classpath was found from are added. */
+	static private void classpath (Project project, Paths paths, boolean includeDependencyJAR, boolean errorIfDepenenciesNotBuilt,
+		HashSet<String> visited, HashSet<String> files, HashMap<String, Project> resolved, Collection<String> inputs)
+		throws IOException {
+		addCanonical(paths, project.getPaths("classpath"), files);
+		if (inputs != null) {
+			// The directories that decide which files the classpath patterns match, including ones that don't exist yet.
+			for (String dirPattern : project.getList("classpath"))
+				for (File dir : GlobCache.dirs(project.path(dirPattern)))
+					inputs.add(dir.getPath());
+		}
 		for (String dependency : project.getList("dependencies")) {
-			Project dependencyProject = project(project.path(dependency));
+			String dependencyPath = project.path(dependency);
+			if (!visited.add(canonical(dependencyPath))) continue;
+			Project dependencyProject = project(dependencyPath, resolved);
 			String dependencyTarget = dependencyProject.path("$target$/");
+			if (inputs != null) {
+				String[] dependencyFiles = projects.getFiles(dependencyPath);
+				if (dependencyFiles != null) Collections.addAll(inputs, dependencyFiles);
+				inputs.add(dependencyTarget);
+			}
 			if (errorIfDepenenciesNotBuilt && !fileExists(dependencyTarget))
 				throw new RuntimeException("Dependency has not been built: " + dependency + "\nAbsolute dependency path: "
 					+ canonical(dependency) + "\nMissing dependency target: " + canonical(dependencyTarget));
-			if (includeDependencyJAR) paths.glob(dependencyTarget, "*.jar");
-			paths.add(classpath(dependencyProject, errorIfDepenenciesNotBuilt));
+			if (includeDependencyJAR) addCanonical(paths, paths(dependencyTarget, "*.jar"), files);
+			classpath(dependencyProject, paths, true, errorIfDepenenciesNotBuilt, visited, files, resolved, inputs);
+		}
+	}
+
+	/** Adds each path that is not already in the files set, using the canonical directory so the same file is not added twice
+	 * through different directories. The relative path of each file is kept. */
+	static private void addCanonical (Paths paths, Paths add, HashSet<String> files) {
+		List<String> absolute = add.getPaths(), relative = add.getRelativePaths();
+		for (int i = 0, n = absolute.size(); i < n; i++) {
+			String file = absolute.get(i), name = relative.get(i);
+			if (!files.add(canonical(file))) continue;
+			paths.add(canonical(file.substring(0, file.length() - name.length())), name);
 		}
-		return paths;
 	}
 
 	/** Collects the source files using the "source" property and compiles them into a "classes" directory under the target
 	 * directory. It uses "classpath" and "dependencies" to find the libraries required to compile the source.
 	 * <p>
+	 * If the "incremental" property is true, a {@link SourceGraph} is stored in the target directory and only source files that
+	 * changed, and those that depend on them, are compiled. All source is compiled if the compile target changed or the ABI of a
+	 * classpath file changed (see {@link Abi}), so a dependency that was rebuilt without changing its public API does not cause
+	 * any source to be compiled.
+	 * <p>
+	 * If the "compileShards" property is more than 1, the source is compiled by {@link CompileShards} as up to that many
+	 * concurrent javac tasks, in separate processes with a "compileHeap" maximum heap size if the "compileFork" property is true.
+	 * <p>
 	 * Note: Each dependency project is not built automatically. Each needs to be built before the dependent project.
 	 * @return The path to the "classes" directory. */
 	static public String compile (Project project) throws IOException {
 		if (project == null) throw new IllegalArgumentException("project cannot be null.");
 
+		Tracer.Span span = Tracer.span("build", "compile", project.toString());
+		try {
+			return compile(project, null);
+		} finally {
+			span.end();
+		}
+	}
+
+	/** @param classes May be null. If not null, the class files are stored in this map and are only written to the "classes"
+	 *           directory if the "keepClasses" or "incremental" property is true. */
+	static private String compile (Project project, Map<String, byte[]> classes) throws IOException {
 		Paths classpath = classpath(project, true);
 		Paths source = project.getPaths("source");
 
@@ -164,7 +280,9 @@ public class Build extends Project {
 			debug(project.toString(), "Classpath: " + classpath.toString("\n"));
 		}
 
-		String classesDir = mkdir(project.path("$target$/classes/"));
+		String classesDir = project.path("$target$/classes/");
+		boolean writeClasses = classes == null || project.getBoolean("keepClasses") || project.getBoolean("incremental");
+		if (writeClasses) mkdir(classesDir);
 
 		String defaultTarget = System.getProperty("java.version");
 		if (defaultTarget.startsWith("1.")) {
@@ -174,10 +292,269 @@ public class Build extends Project {
 			int index = defaultTarget.indexOf('.');
 			if (index != -1) defaultTarget = defaultTarget.substring(0, index);
 		}
-		Scar.compile(source, classpath, classesDir, project.get("compileTarget", defaultTarget));
+		String compileTarget = project.get("compileTarget", defaultTarget);
+
+		// The journal shows nothing changed using only a stat call per file, without reading the classpath or source graph.
+		FileJournal journal = null;
+		String journalStamp = null;
+		if (classes == null && project.getBoolean("incremental")) {
+			journal = journal(project);
+			journalStamp = Scar.compileOptions(compileTarget).toString();
+			if (journal.isCurrent(project + "/compile", journalStamp, compileFiles(project, source, classpath, classesDir))) {
+				if (DEBUG) debug(project.toString(), "Classes are up to date.");
+				return classesDir;
+			}
+		}
+
+		// Only the ABI of the classpath affects the class files, see Abi.
+		String classpathStamp = null;
+		if (project.getBoolean("incremental") || project.getBoolean("cache"))
+			classpathStamp = Abi.stamp(classpath, project.path("$target$/scar/classpath"));
+
+		String cacheKey = null;
+		if (project.getBoolean("cache")) {
+			cacheKey = cache.key("classes").add(Scar.compileOptions(compileTarget).toString()).add(classpathStamp).add(source)
+				.toString();
+		}
+
+		if (!project.getBoolean("incremental")) {
+			if (cacheKey != null && restoreClasses(project, cacheKey, classesDir, classes, writeClasses, null, null)) return classesDir;
+			javac(project, source, classpath, writeClasses ? classesDir : null, compileTarget, null, classes);
+			if (cacheKey != null) storeClasses(project, cacheKey, classes == null ? classesDir : null, classes, null, null);
+			return classesDir;
+		}
+
+		String graphFile = project.path("$target$/scar/sources");
+		String stamp = compileTarget + classpathStamp;
+		if (cacheKey != null && restoreClasses(project, cacheKey, classesDir, classes, writeClasses, source, stamp)) {
+			recordCompile(journal, journalStamp, project, source, classpath, classesDir);
+			return classesDir;
+		}
+		SourceGraph graph = SourceGraph.load(graphFile);
+		if (!graph.getStamp().equals(stamp)) {
+			if (DEBUG && !graph.isEmpty()) debug(project.toString(), "Classpath ABI changed, compiling all source.");
+			graph = new SourceGraph();
+			graph.setStamp(stamp);
+			delete(classesDir);
+			mkdir(classesDir);
+		}
+		Paths stale = graph.stale(source, classesDir);
+		if (!stale.isEmpty()) {
+			// If compilation fails the classes directory is incomplete, so without a graph the next build compiles all source.
+			delete(graphFile);
+			Paths compileClasspath = new OrderedPaths();
+			compileClasspath.add(classpath);
+			compileClasspath.addFile(classesDir);
+			javac(project, stale, compileClasspath, classesDir, compileTarget, graph, classes);
+			graph.compiled(stale);
+		} else if (DEBUG) //
+			debug(project.toString(), "Source is up to date.");
+		graph.save(graphFile);
+		if (cacheKey != null) storeClasses(project, cacheKey, classesDir, null, source, graphFile);
+		recordCompile(journal, journalStamp, project, source, classpath, classesDir);
 		return classesDir;
 	}
 
+	/** Returns the files compiling an incremental project reads and writes, as recorded in the {@link #journal(Project)}. */
+	static private Paths[] compileFiles (Project project, Paths source, Paths classpath, String classesDir) {
+		return new Paths[] {source, classpath, paths(classesDir, "**/*.class"), Scar.path(project.path("$target$/scar/sources"))};
+	}
+
+	/** @param journal May be null. */
+	static private void recordCompile (FileJournal journal, String journalStamp, Project project, Paths source, Paths classpath,
+		String classesDir) throws IOException {
+		if (journal == null) return;
+		journal.record(project + "/compile", journalStamp, compileFiles(project, source, classpath, classesDir));
+		journal.save();
+	}
+
+	/** Compiles the source files. If the "compileShards" property is more than 1, {@link CompileShards} is used to compile the
+	 * source as that many concurrent javac tasks, which are separate processes if the "compileFork" property is true.
+	 * @param outputDir May be null if classes is not null.
+	 * @param listener May be null.
+	 * @param classes May be null. If not null, the class files are stored in this map. */
+	static private void javac (Project project, Paths source, Paths classpath, String outputDir, String compileTarget,
+		CompileListener listener, Map<String, byte[]> classes) throws IOException {
+		int shards = project.getInt("compileShards", 1);
+		if (shards < 2) {
+			if (classes == null)
+				Scar.compile(source, classpath, outputDir, compileTarget, listener);
+			else
+				classes.putAll(Scar.compileToMemory(source, classpath, outputDir, compileTarget, listener));
+			return;
+		}
+
+		String heap = project.getBoolean("compileFork") ? project.get("compileHeap", "1g") : null;
+		String shardDir = outputDir != null ? outputDir : tempDirectory("classes");
+		try {
+			CompileShards.compile(source, classpath, shardDir, compileTarget, listener, shards, threads(), heap);
+			if (classes != null) {
+				Paths classFiles = paths(shardDir, "**/*.class");
+				List<String> files = classFiles.getPaths(), names = classFiles.getRelativePaths();
+				for (int i = 0, n = files.size(); i < n; i++)
+					classes.put(names.get(i).replace('\\', '/'), readBytes(files.get(i)));
+			}
+		} finally {
+			if (outputDir == null) delete(shardDir);
+		}
+	}
+
+	/** Restores the class files for the cache key from the {@link #cache}, if it has them. For an incremental project the source
+	 * graph is also restored, unless the classes directory is already from the cache key.
+	 * @param source Null if the project is not incremental.
+	 * @return true if the class files were restored. */
+	static private boolean restoreClasses (Project project, String cacheKey, String classesDir, Map<String, byte[]> classes,
+		boolean writeClasses, Paths source, String stamp) throws IOException {
+		String keyFile = project.path("$target$/scar/cache");
+		if (source != null && fileExists(keyFile) && readString(keyFile).equals(cacheKey)) return false;
+		String cacheFile = cache.get(cacheKey, ".zip");
+		if (cacheFile == null) return false;
+
+		if (INFO) info(project.toString(), "Restoring classes from build cache.");
+		if (writeClasses) {
+			delete(classesDir);
+			mkdir(classesDir);
+		}
+		String graphFile = project.path("$target$/scar/sources");
+		if (source != null) delete(graphFile);
+		ZipInputStream input = new ZipInputStream(new FileInputStream(cacheFile));
+		try {
+			while (true) {
+				ZipEntry entry = input.getNextEntry();
+				if (entry == null) break;
+				ByteArrayOutputStream output = new ByteArrayOutputStream((int)Math.max(entry.getSize(), 256));
+				byte[] buffer = new byte[4096];
+				while (true) {
+					int length = input.read(buffer);
+					if (length == -1) break;
+					output.write(buffer, 0, length);
+				}
+				String name = entry.getName();
+				String file;
+				if (name.equals(graphEntry)) {
+					if (source == null) continue;
+					file = graphFile;
+				} else {
+					if (classes != null) classes.put(name, output.toByteArray());
+					if (!writeClasses) continue;
+					file = classesDir + name;
+				}
+				mkdir(new File(file).getParent());
+				FileOutputStream fileOutput = new FileOutputStream(file);
+				try {
+					output.writeTo(fileOutput);
+				} finally {
+					try {
+						fileOutput.close();
+					} catch (Exception ignored) {
+					}
+				}
+			}
+		} finally {
+			try {
+				input.close();
+			} catch (Exception ignored) {
+			}
+		}
+
+		if (source != null) {
+			// The source files have the same contents as when the graph was stored.
+			SourceGraph graph = SourceGraph.load(graphFile).rebase(source);
+			graph.touch(source);
+			graph.setStamp(stamp);
+			graph.save(graphFile);
+			writeFile(keyFile, cacheKey, false);
+		}
+		return true;
+	}
+
+	/** Stores the class files in the {@link #cache} for the cache key, if it doesn't already have them.
+	 * @param classesDir If null, the class files are taken from the map.
+	 * @param source May be null if graphFile is null.
+	 * @param graphFile May be null. */
+	static private void storeClasses (Project project, String cacheKey, String classesDir, Map<String, byte[]> classes,
+		Paths source, String graphFile) throws IOException {
+		if (graphFile != null) writeFile(project.path("$target$/scar/cache"), cacheKey, false);
+		if (cache.get(cacheKey, ".zip") != null) return;
+
+		String zipFile = tempFile("classes");
+		ZipOutputStream output = new ZipOutputStream(new FileOutputStream(zipFile));
+		output.setLevel(Deflater.BEST_SPEED);
+		try {
+			if (classesDir != null) {
+				Paths classFiles = paths(classesDir, "**/*.class");
+				List<String> files = classFiles.getPaths(), names = classFiles.getRelativePaths();
+				for (int i = 0, n = files.size(); i < n; i++) {
+					output.putNextEntry(new ZipEntry(names.get(i).replace('\\', '/')));
+					output.write(readBytes(files.get(i)));
+				}
+			} else {
+				for (Entry<String, byte[]> entry : classes.entrySet()) {
+					output.putNextEntry(new ZipEntry(entry.getKey()));
+					output.write(entry.getValue());
+				}
+			}
+			if (graphFile != null) {
+				// The graph is stored with relative paths, so it can be restored into a different checkout.
+				String relativeFile = tempFile("sources");
+				try {
+					SourceGraph.load(graphFile).relativize(source).save(relativeFile);
+					output.putNextEntry(new ZipEntry(graphEntry));
+					output.write(readBytes(relativeFile));
+				} finally {
+					delete(relativeFile);
+				}
+			}
+		} finally {
+			try {
+				output.close();
+			} catch (Exception ignored) {
+			}
+		}
+		try {
+			cache.put(cacheKey, ".zip", zipFile);
+		} finally {
+			delete(zipFile);
+		}
+	}
+
+	/** Returns the cache key for a JAR with the specified class files, which are either files or a map of bytes. */
+	static private String jarKey (Project project, Paths classFiles, Map<String, byte[]> classes, Paths resources,
+		Paths classpath) throws IOException {
+		BuildCache.Key key = cache.key("jar").add(new File(jarFile(project)).getName()).add(project.get("main", ""))
+			.add(compression(project).toString()).add(String.valueOf(project.getBoolean("reproducible")));
+		ArrayList<String> names = new ArrayList(classpath.getRelativePaths());
+		Collections.sort(names);
+		key.add(names.toString());
+		if (classFiles != null)
+			key.add(classFiles);
+		else {
+			ArrayList<String> classNames = new ArrayList(classes.keySet());
+			Collections.sort(classNames);
+			for (String name : classNames)
+				key.add(name, classes.get(name));
+		}
+		key.add("resources").add(resources);
+		return key.toString();
+	}
+
+	/** Copies the JAR for the cache key from the {@link #cache}, if it has it.
+	 * @param stamp May be null.
+	 * @return true if the JAR was restored. */
+	static private boolean restoreJar (Project project, String cacheKey, String jarFile, String stamp, Paths classFiles,
+		Paths resources) throws IOException {
+		String cacheFile = cache.get(cacheKey, ".jar");
+		if (cacheFile == null) return false;
+		if (INFO) info(project.toString(), "Restoring JAR from build cache.");
+		mkdir(new File(jarFile).getParent());
+		if (project.getBoolean("reproducible"))
+			copyFileIfChanged(cacheFile, jarFile);
+		else
+			copyFile(cacheFile, jarFile);
+		recordJar(project, jarFile, stamp, classFiles, resources);
+		return true;
+	}
+
 	/** Collects the class files from the "classes" directory and all the resource files using the "resources" property and encodes
 	 * them into a JAR file.
 	 * 
@@ -189,19 +566,151 @@ public class Build extends Project {
 
 		if (INFO) info(project.toString(), "JAR");
 
-		String jarDir = mkdir(project.path("$target$/jar/"));
-
 		String classesDir = project.path("$target$/classes/");
-		paths(classesDir, "**/*.class").copyTo(jarDir);
-		project.getPaths("resources").copyTo(jarDir);
+		Paths classFiles = paths(classesDir, "**/*.class");
+		Paths resources = project.getPaths("resources");
+		Paths classpath = classpath(project, true);
+		String jarFile = jarFile(project);
 
-		String jarFile;
-		if (project.has("version"))
-			jarFile = project.path("$target$/$name$-$version$.jar");
+		String stamp = jarStamp(project, classpath);
+		if (jarCurrent(project, jarFile, stamp, classFiles, resources)) return jarFile;
+
+		String cacheKey = null;
+		if (project.getBoolean("cache")) {
+			cacheKey = jarKey(project, classFiles, null, resources, classpath);
+			if (restoreJar(project, cacheKey, jarFile, stamp, classFiles, resources)) return jarFile;
+		}
+
+		Tracer.Span span = Tracer.span("build", "jar", project.toString());
+		try {
+			LinkedHashMap<String, Object> entries;
+			if (stamp != null) {
+				// An incremental project's JAR is updated from the files where they are.
+				entries = Jar.entries(resources, Jar.entries(classFiles, null));
+			} else {
+				String jarDir = project.path("$target$/jar/");
+				delete(jarDir);
+				mkdir(jarDir);
+				classFiles.copyTo(jarDir);
+				resources.copyTo(jarDir);
+				entries = Jar.entries(new Paths(jarDir), null);
+			}
+			writeJar(project, jarFile, entries, classpath, stamp);
+			recordJar(project, jarFile, stamp, classFiles, resources);
+			if (cacheKey != null && fileExists(jarFile)) cache.put(cacheKey, ".jar", jarFile);
+		} finally {
+			span.end();
+		}
+		return jarFile;
+	}
+
+	static private final String graphEntry = "scar/sources";
+
+	/** Returns the compression for the project's JARs, from the "compression" command line argument or project property: "release",
+	 * "fast", "store", or a deflate level from 0 to 9. By default incremental projects use "fast", so development builds don't pay
+	 * for the best compression, and other projects use "release". */
+	static public CompressionPolicy compression (Project project) {
+		if (project == null) throw new IllegalArgumentException("project cannot be null.");
+		String name = Scar.args.get("compression", project.get("compression"));
+		if (name == null) return project.getBoolean("incremental") ? CompressionPolicy.fast : CompressionPolicy.release;
+		return CompressionPolicy.get(name);
+	}
+
+	static private String jarFile (Project project) {
+		if (project.has("version")) return project.path("$target$/$name$-$version$.jar");
+		return project.path("$target$/$name$.jar");
+	}
+
+	/** Returns a string that changes when the manifest of the project's JAR changes, or null if the project is not incremental.
+	 * The class files and resources are checked using the {@link #journal(Project)}. */
+	static private String jarStamp (Project project, Paths classpath) {
+		if (!project.getBoolean("incremental")) return null;
+		ArrayList<String> names = new ArrayList(classpath.getRelativePaths());
+		Collections.sort(names);
+		return compression(project) + "|" + project.get("main", "") + '|' + project.getBoolean("reproducible") + '|' + names;
+	}
+
+	/** Writes the project's JAR. An incremental project's existing JAR is updated, reusing the compressed bytes of the entries that
+	 * didn't change, if the journal shows it was written with the same compression.
+	 * @param stamp May be null. */
+	static private void writeJar (Project project, String jarFile, Map<String, Object> entries, Paths classpath, String stamp)
+		throws IOException {
+		CompressionPolicy compression = compression(project);
+		boolean reproducible = project.getBoolean("reproducible");
+		String previousStamp = stamp == null ? null : journal(project).getStamp(project + "/jar");
+		if (previousStamp != null && previousStamp.startsWith(compression + "|"))
+			Jar.update(jarFile, entries, project.get("main"), classpath, compression, reproducible);
 		else
-			jarFile = project.path("$target$/$name$.jar");
+			Jar.jar(jarFile, entries, project.get("main"), classpath, compression, reproducible);
+	}
+
+	/** Returns true if the JAR file exists and the journal shows it was written from the same files with the specified stamp. */
+	static private boolean jarCurrent (Project project, String jarFile, String stamp, Paths classFiles, Paths resources) {
+		if (stamp == null || !fileExists(jarFile)) return false;
+		if (!journal(project).isCurrent(project + "/jar", stamp, classFiles, resources, Scar.path(jarFile))) return false;
+		if (DEBUG) debug(project.toString(), "JAR is up to date.");
+		return true;
+	}
+
+	/** Records the files the JAR was written from in the journal, if the stamp is not null. */
+	static private void recordJar (Project project, String jarFile, String stamp, Paths classFiles, Paths resources)
+		throws IOException {
+		if (stamp == null) return;
+		FileJournal journal = journal(project);
+		journal.record(project + "/jar", stamp, classFiles, resources, Scar.path(jarFile));
+		journal.save();
+	}
+
+	/** Compiles the source like {@link #compile(Project)} and then writes the class files, along with the files from the
+	 * "resources" property, directly to the JAR file like {@link #jar(Project)}, without staging them in the "jar" directory. The
+	 * class files are kept in memory and are not written to the "classes" directory unless the "keepClasses" or "incremental"
+	 * property is true.
+	 * @return The path to the created JAR file. */
+	static public String compileJar (Project project) throws IOException {
+		if (project == null) throw new IllegalArgumentException("project cannot be null.");
+
+		LinkedHashMap<String, Object> entries = new LinkedHashMap();
+		Paths classFiles = null;
+		LinkedHashMap<String, byte[]> classes = null;
+		Tracer.Span span = Tracer.span("build", "compile", project.toString());
+		try {
+			if (project.getBoolean("keepClasses") || project.getBoolean("incremental")) {
+				String classesDir = compile(project, null);
+				classFiles = paths(classesDir, "**/*.class");
+				Jar.entries(classFiles, entries);
+			} else {
+				classes = new LinkedHashMap();
+				compile(project, classes);
+				entries.putAll(classes);
+			}
+		} finally {
+			span.end();
+		}
+
+		if (INFO) info(project.toString(), "JAR");
+
+		Paths resources = project.getPaths("resources");
+		Paths classpath = classpath(project, true);
+		String jarFile = jarFile(project);
+
+		String stamp = classFiles == null ? null : jarStamp(project, classpath);
+		if (jarCurrent(project, jarFile, stamp, classFiles, resources)) return jarFile;
+
+		String cacheKey = null;
+		if (project.getBoolean("cache")) {
+			cacheKey = jarKey(project, classFiles, classes, resources, classpath);
+			if (restoreJar(project, cacheKey, jarFile, stamp, classFiles, resources)) return jarFile;
+		}
 
-		Jar.jar(jarFile, jarDir, project.get("main"), classpath(project, true));
+		span = Tracer.span("build", "jar", project.toString());
+		try {
+			Jar.entries(resources, entries);
+			writeJar(project, jarFile, entries, classpath, stamp);
+			recordJar(project, jarFile, stamp, classFiles, resources);
+			if (cacheKey != null && fileExists(jarFile)) cache.put(cacheKey, ".jar", jarFile);
+		} finally {
+			span.end();
+		}
 		return jarFile;
 	}
 
@@ -214,26 +723,79 @@ public class Build extends Project {
 
 		if (INFO) info(project.toString(), "Dist");
 
-		String distDir = mkdir(project.path("$target$/dist/"));
-		classpath(project, true).copyTo(distDir);
-		Paths distPaths = project.getPaths("dist");
-		dependencyDistPaths(project, distPaths);
-		distPaths.copyTo(distDir);
-		paths(project.path("$target$"), "*.jar").copyTo(distDir);
-		return distDir;
+		Tracer.Span span = Tracer.span("build", "dist", project.toString());
+		try {
+			String distDir = project.path("$target$/dist/");
+			Paths classpath = classpath(project, true);
+			Paths distPaths = project.getPaths("dist");
+			dependencyDistPaths(project, distPaths, new HashSet());
+			Paths jars = paths(project.path("$target$"), "*.jar");
+
+			boolean reproducible = project.getBoolean("reproducible");
+
+			// An incremental project's "dist" directory is only written again if the journal shows a file changed.
+			FileJournal journal = null;
+			String stamp = null;
+			if (project.getBoolean("incremental")) {
+				journal = journal(project);
+				stamp = classpath.getRelativePaths() + "|" + distPaths.getRelativePaths() + "|" + jars.getRelativePaths();
+				if (journal.isCurrent(project + "/dist", stamp, classpath, distPaths, jars, paths(distDir))) {
+					if (DEBUG) debug(project.toString(), "Dist is up to date.");
+					return distDir;
+				}
+				if (!reproducible) delete(distDir);
+			}
+
+			mkdir(distDir);
+			if (reproducible) {
+				// Unchanged files are not written again, so they keep their modification time.
+				HashSet<String> distFiles = new HashSet();
+				copyChanged(classpath, distDir, distFiles);
+				copyChanged(distPaths, distDir, distFiles);
+				copyChanged(jars, distDir, distFiles);
+				for (String file : paths(distDir, "!onejar/**"))
+					if (!distFiles.contains(new File(file).getAbsolutePath())) delete(file);
+			} else {
+				classpath.copyTo(distDir);
+				distPaths.copyTo(distDir);
+				jars.copyTo(distDir);
+			}
+			if (journal != null) {
+				journal.record(project + "/dist", stamp, classpath, distPaths, jars, paths(distDir));
+				journal.save();
+			}
+			return distDir;
+		} finally {
+			span.end();
+		}
+	}
+
+	/** Copies the files to the directory like {@link Paths#copyTo(String)}, except files that are unchanged.
+	 * @param copied The absolute paths of the files in the directory are added to this set. */
+	static private void copyChanged (Paths paths, String dir, HashSet<String> copied) throws IOException {
+		paths = paths.filesOnly();
+		List<String> fullPaths = paths.getPaths(), relativePaths = paths.getRelativePaths();
+		for (int i = 0, n = fullPaths.size(); i < n; i++) {
+			File file = new File(dir, relativePaths.get(i));
+			mkdir(file.getParent());
+			copyFileIfChanged(fullPaths.get(i), file.getPath());
+			copied.add(file.getAbsolutePath());
+		}
 	}
 
-	static private Paths dependencyDistPaths (Project project, Paths paths) throws IOException {
+	/** @param visited The canonical paths of the dependency projects already added. */
+	static private void dependencyDistPaths (Project project, Paths paths, HashSet<String> visited) throws IOException {
 		if (project == null) throw new IllegalArgumentException("project cannot be null.");
 
 		for (String dependency : project.getList("dependencies")) {
-			Project dependencyProject = project(project.path(dependency));
+			String dependencyPath = project.path(dependency);
+			if (!visited.add(canonical(dependencyPath))) continue;
+			Project dependencyProject = project(dependencyPath);
 			String dependencyTarget = dependencyProject.path("$target$/");
 			if (!fileExists(dependencyTarget)) throw new RuntimeException("Dependency has not been built: " + dependency);
 			paths.glob(dependencyTarget + "dist", "!*/**.jar");
-			paths.add(dependencyDistPaths(dependencyProject, paths));
+			dependencyDistPaths(dependencyProject, paths, visited);
 		}
-		return paths;
 	}
 
 	/** Copies all the JAR and JNLP files from the "dist" directory to a "jws" directory under the "target" directory. It then uses
@@ -316,18 +878,47 @@ public class Build extends Project {
 		return appletDir;
 	}
 
-	/** Unzips all JARs in the "dist" directory and creates a single JAR containing those files in the "dist/onejar" directory. The
-	 * manifest from the project's JAR is used. Putting everything into a single JAR makes it harder to see what libraries are
-	 * being used, but makes it easier for end users to distribute the application.
+	/** Combines all JARs in the "dist" directory into a single JAR in the "dist/onejar" directory, without extracting them, see
+	 * {@link JarMerger}. If the project has a main class, a manifest is generated, otherwise the manifest from the project's JAR
+	 * is used. Putting everything into a single JAR makes it harder to see what libraries are being used, but makes it easier for
+	 * end users to distribute the application.
 	 * <p>
-	 * Note: Files with the same path in different JARs will be overwritten. Files in the project's JAR will never be overwritten,
-	 * but may overwrite other files.
+	 * Files with the same path in different JARs are handled as the "onejarDuplicates" property specifies. By default, files in
+	 * the project's JAR are always used and otherwise files from later JARs are used. Service files are concatenated and signature
+	 * files are removed.
 	 * @param excludeJARs The names of any JARs to exclude. */
 	static public void oneJAR (Project project, String... excludeJARs) throws IOException {
-		String onejarDir = oneJAR_unzip(project, excludeJARs);
-		oneJAR_jar(project, onejarDir);
+		if (project == null) throw new IllegalArgumentException("project cannot be null.");
+
+		if (INFO) info(project.toString(), "One JAR");
+
+		String distDir = project.path("$target$/dist/");
+		paths(distDir, "!*.jar", "!onejar").copyTo(project.path("$target$/dist/onejar"));
+
+		String projectJarName;
+		if (project.has("version"))
+			projectJarName = project.format("$name$-$version$.jar");
+		else
+			projectJarName = project.format("$name$.jar");
+		String projectJar = distDir + projectJarName;
+
+		JarMerger merger = new JarMerger();
+		outer:
+		for (String jarFile : paths(distDir, "*.jar", "!" + projectJarName)) {
+			String jarName = fileName(jarFile);
+			for (String exclude : excludeJARs)
+				if (jarName.equals(exclude)) continue outer;
+			merger.add(jarFile);
+		}
+		merger.add(projectJar);
+		merger.setDuplicates(JarMerger.get(project.get("onejarDuplicates", "project"), projectJar));
+		if (project.has("main")) merger.setMain(project.get("main"), classpath(project, true));
+		merger.setCompression(compression(project));
+		merger.merge(oneJAR_file(project));
 	}
 
+	/** Extracts the JARs in the "dist" directory for {@link #oneJAR_jar(Project, String)}, for project documents that change the
+	 * files before they are JARed. {@link #oneJAR(Project, String...)} does not extract the JARs. */
 	static public String oneJAR_unzip (Project project, String... excludeJARs) throws IOException {
 		if (project == null) throw new IllegalArgumentException("project cannot be null.");
 
@@ -360,37 +951,44 @@ public class Build extends Project {
 	}
 
 	static public void oneJAR_jar (Project project, String onejarDir) throws IOException {
-		String onejarFile;
-		if (project.has("version"))
-			onejarFile = project.path("$target$/dist/onejar/$name$-$version$-all.jar");
-		else
-			onejarFile = project.path("$target$/dist/onejar/$name$-all.jar");
+		String onejarFile = oneJAR_file(project);
 		mkdir(parent(onejarFile));
 
-		Jar.jar(onejarFile, onejarDir, project.get("main"), classpath(project, true));
+		Jar.jar(onejarFile, new Paths(onejarDir), project.get("main"), classpath(project, true), compression(project));
+	}
+
+	static private String oneJAR_file (Project project) {
+		if (project.has("version")) return project.path("$target$/dist/onejar/$name$-$version$-all.jar");
+		return project.path("$target$/dist/onejar/$name$-all.jar");
 	}
 
-	/** Calls {@link #build(Project)} for each dependency project in the specified project. */
+	/** Calls {@link #build(Project)} for each dependency project in the specified project, recursively. Each project is built
+	 * once, after its own dependencies, and independent projects are built concurrently using {@link Scar#threads()} threads. If a
+	 * dependency project has a document, it is executed instead of calling build. */
 	static public void buildDependencies (Project project) throws IOException {
 		if (project == null) throw new IllegalArgumentException("project cannot be null.");
 
-		for (String dependency : project.getList("dependencies")) {
-			Project dependencyProject = project(project.path(dependency));
-
-			if (builtProjects.contains(dependencyProject.get("name"))) {
-				if (DEBUG) debug(project.toString(), "Dependency project already built: " + dependencyProject);
+		ProjectGraph graph = new ProjectGraph(project);
+		ArrayList<ProjectGraph.Node> nodes = new ArrayList();
+		for (ProjectGraph.Node node : graph.getNodes()) {
+			for (ProjectGraph.Node dependency : node.getDependencies())
+				Tracer.dependency(node.project.toString(), dependency.project.toString());
+			if (node == graph.getRoot()) continue;
+			if (builtProjects.contains(node.project.toString())) {
+				if (DEBUG) debug(project.toString(), "Dependency project already built: " + node.project);
 				continue;
 			}
-
-			String jarFile;
-			if (dependencyProject.has("version"))
-				jarFile = dependencyProject.path("$target$/$name$-$version$.jar");
-			else
-				jarFile = dependencyProject.path("$target$/$name$.jar");
-
-			if (DEBUG) debug("Building dependency: " + dependencyProject);
-			if (!executeDocument(dependencyProject)) build(dependencyProject);
+			nodes.add(node);
 		}
+		graph.execute(nodes, threads(), new ProjectGraph.Task() {
+			public void run (Project dependencyProject) throws IOException {
+				if (DEBUG) debug("Building dependency: " + dependencyProject);
+				if (!executeDocument(dependencyProject)) build(dependencyProject);
+				synchronized (builtProjects) {
+					if (!builtProjects.contains(dependencyProject.toString())) builtProjects.add(dependencyProject.toString());
+				}
+			}
+		});
 	}
 
 	/** Calls {@link #project(String)} and then {@link #build(Project)}. */
@@ -398,33 +996,58 @@ public class Build extends Project {
 		build(project(path));
 	}
 
-	/** Executes the buildDependencies, clean, compile, jar, and dist utility metshods. */
+	/** Returns the journal for the project's workspace, used to check whether the files read and written by each build step
+	 * changed. It is stored in the file from the "journal" property, by default ".scar/journal" in the directory containing the
+	 * "target" directory. */
+	static public FileJournal journal (Project project) {
+		if (project == null) throw new IllegalArgumentException("project cannot be null.");
+		return Scar.journal(project.path(project.get("journal", "$target$/../.scar/journal")));
+	}
+
+	/** Executes the buildDependencies, clean, compile, jar, and dist utility metshods. If the "incremental" property is true, the
+	 * classes directory is not cleaned, only changed source is compiled, and the JAR is only written if it changed. If the
+	 * "reproducible" property is true, the JAR and dist files are not cleaned, so those that are unchanged are not written again. */
 	static public void build (Project project) throws IOException {
 		if (project == null) throw new IllegalArgumentException("project cannot be null.");
 
 		buildDependencies(project);
 
-		if (INFO) info(project.toString(), "Target: " + project.path("$target$"));
-
-		clean(project);
+		Tracer.Span span = Tracer.span("project", project.toString(), null);
 		try {
-			Thread.sleep(100);
-		} catch (InterruptedException ignored) {
-		}
-		compile(project);
-		try {
-			Thread.sleep(100);
-		} catch (InterruptedException ignored) {
-		}
-		jar(project);
-		dist(project);
+			if (INFO) info(project.toString(), "Target: " + project.path("$target$"));
+
+			if (project.getBoolean("incremental")) {
+				// Keep the classes, source graph, JAR, and dist files, everything else is rebuilt from them. The JAR and dist files
+				// are only rewritten if their inputs changed. JARs with a different name, such as for an older version, are removed.
+				Paths jars = paths(project.path("$target$"), "*.jar");
+				String jarFile = new File(jarFile(project)).getName();
+				for (String file : jars.getPaths())
+					if (!new File(file).getName().equals(jarFile)) delete(file);
+			} else if (project.getBoolean("reproducible")) {
+				// Keep the JAR and dist files, so they keep their modification time if they are written with the same bytes.
+				if (INFO) info(project.toString(), "Clean");
+				paths(project.path("$target$"), "!" + new File(jarFile(project)).getName(), "!dist/**").delete();
+			} else
+				clean(project);
+			sleep(100);
+			if (project.getBoolean("compileToJar"))
+				compileJar(project);
+			else {
+				compile(project);
+				sleep(100);
+				jar(project);
+			}
+			dist(project);
 
-		if (paths(project.path("$target$")).filesOnly().isEmpty()) {
-			if (WARN) warn(project.toString(), "Empty target folder.");
-			delete(project.path("$target$"));
-		}
+			if (paths(project.path("$target$")).filesOnly().isEmpty()) {
+				if (WARN) warn(project.toString(), "Empty target folder.");
+				delete(project.path("$target$"));
+			}
 
-		builtProjects.add(project.get("name"));
+			builtProjects.add(project.get("name"));
+		} finally {
+			span.end();
+		}
 	}
 
 	/** Executes Java code in the specified project's document, if any.
@@ -434,10 +1057,13 @@ public class Build extends Project {
 		if (code == null || code.trim().isEmpty()) return false;
 		HashMap<String, Object> parameters = new HashMap();
 		parameters.put("project", project);
+		Tracer.Span span = Tracer.span("project", project.toString(), "document");
 		try {
 			Scar.executeCode(code, parameters, project);
 		} catch (RuntimeException ex) {
 			throw new RuntimeException("Error executing code for project: " + project, ex);
+		} finally {
+			span.end();
 		}
 		return true;
 	}
@@ -456,7 +1082,23 @@ public class Build extends Project {
 		else if (Scar.args.has("error")) //
 			ERROR();
 
-		Project project = project(Scar.args.get("file", "."));
-		if (!executeDocument(project)) build(project);
+		if (Scar.args.has("profile")) Tracer.start();
+		String path = Scar.args.get("file", ".");
+		boolean watch = Scar.args.has("watch");
+		try {
+			Project project = project(path);
+			if (!executeDocument(project)) build(project);
+		} catch (IOException ex) {
+			if (!watch) throw ex;
+			if (ERROR) error("scar", "Build failed.", ex);
+		} catch (RuntimeException ex) {
+			if (!watch) throw ex;
+			if (ERROR) error("scar", "Build failed.", ex);
+		} finally {
+			if (Tracer.isEnabled()) Tracer.write(Scar.args.get("profile", "profile.json"));
+		}
+
+		// Keep running and rebuild when files change.
+		if (watch) new Watcher(path, Integer.parseInt(Scar.args.get("watchDelay", "200"))).run();
 	}
 }
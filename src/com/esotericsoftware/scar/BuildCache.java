@@ -0,0 +1,231 @@
+
+package com.esotericsoftware.scar;
+
+import static com.esotericsoftware.minlog.Log.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import com.esotericsoftware.wildcard.Paths;
+
+/** Stores build outputs in a directory by a key computed from the build inputs, so outputs can be reused when the inputs are
+ * byte for byte the same as a previous build, even in a different checkout or after switching branches. Files are written to a
+ * temporary file and renamed, so concurrent builds can share a cache directory. When the total size exceeds the maximum, the
+ * least recently used files are deleted.
+ * <p>
+ * {@link Build#cache} is used by {@link Build#compile(Project)} and {@link Build#jar(Project)} for projects with the "cache"
+ * property. */
+public class BuildCache {
+	static private final long inUseTime = 60 * 1000;
+
+	private final String dir;
+	private final long maxSize;
+	private final HashMap<String, String[]> hashes = new HashMap();
+
+	/** @param maxSize The maximum number of bytes to keep in the cache directory. */
+	public BuildCache (String dir, long maxSize) {
+		if (dir == null) throw new IllegalArgumentException("dir cannot be null.");
+		this.dir = dir;
+		this.maxSize = maxSize;
+	}
+
+	public String getDir () {
+		return dir;
+	}
+
+	public long getMaxSize () {
+		return maxSize;
+	}
+
+	/** Returns the path to the cached file for the specified key, or null if the key is not in the cache. The file must not be
+	 * modified.
+	 * @param extension The file extension, such as ".jar". */
+	public String get (String key, String extension) {
+		File file = new File(dir, key + extension);
+		if (!file.isFile()) return null;
+		// Mark the file as recently used.
+		file.setLastModified(System.currentTimeMillis());
+		if (DEBUG) debug("scar", "Build cache hit: " + file.getName());
+		return file.getPath();
+	}
+
+	/** Stores a copy of the specified file for the key, then evicts the least recently used files if the cache is too large.
+	 * @param extension The file extension, such as ".jar". */
+	public void put (String key, String extension, String file) throws IOException {
+		if (key == null) throw new IllegalArgumentException("key cannot be null.");
+		if (file == null) throw new IllegalArgumentException("file cannot be null.");
+
+		File outputFile = new File(dir, key + extension);
+		Scar.mkdir(dir);
+		File tempFile = File.createTempFile(key, ".tmp", new File(dir));
+		try {
+			Scar.copyFile(file, tempFile.getPath());
+			try {
+				Files.move(tempFile.toPath(), outputFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException ex) {
+				Files.move(tempFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			tempFile.delete();
+		}
+		if (DEBUG) debug("scar", "Build cache stored: " + outputFile.getName());
+		evict();
+	}
+
+	/** Deletes the least recently used files until the cache is no larger than the maximum size. Files used in the last minute are
+	 * kept, since another build may be copying a file it just got from {@link #get(String, String)}. */
+	public void evict () {
+		File[] files = new File(dir).listFiles();
+		if (files == null) return;
+		long size = 0;
+		final HashMap<File, Long> lastModified = new HashMap();
+		for (File file : files) {
+			size += file.length();
+			lastModified.put(file, file.lastModified());
+		}
+		if (size <= maxSize) return;
+		List<File> list = Arrays.asList(files);
+		Collections.sort(list, new Comparator<File>() {
+			public int compare (File a, File b) {
+				long timeA = lastModified.get(a), timeB = lastModified.get(b);
+				return timeA < timeB ? -1 : (timeA > timeB ? 1 : 0);
+			}
+		});
+		long now = System.currentTimeMillis();
+		for (File file : list) {
+			if (size <= maxSize) break;
+			if (now - lastModified.get(file) < inUseTime) continue;
+			// Temporary files from builds in progress are left alone unless they are old.
+			if (file.getName().endsWith(".tmp") && now - lastModified.get(file) < 60 * 60 * 1000) continue;
+			long length = file.length();
+			if (file.delete()) {
+				size -= length;
+				if (TRACE) trace("scar", "Build cache evicted: " + file.getName());
+			}
+		}
+	}
+
+	/** Returns the SHA-1 hash of the file's contents. Hashes are kept in memory by path, size, and modification time, so each file
+	 * is only read once per process unless it is modified. */
+	public String hash (String file) throws IOException {
+		File fileObject = new File(file);
+		String path = fileObject.getAbsolutePath();
+		String length = String.valueOf(fileObject.length()), lastModified = String.valueOf(fileObject.lastModified());
+		synchronized (hashes) {
+			String[] cached = hashes.get(path);
+			if (cached != null && cached[0].equals(length) && cached[1].equals(lastModified)) return cached[2];
+		}
+		MessageDigest digest = digest();
+		InputStream input = new FileInputStream(fileObject);
+		try {
+			byte[] buffer = new byte[8192];
+			while (true) {
+				int count = input.read(buffer);
+				if (count == -1) break;
+				digest.update(buffer, 0, count);
+			}
+		} finally {
+			try {
+				input.close();
+			} catch (Exception ignored) {
+			}
+		}
+		String hash = hex(digest.digest());
+		synchronized (hashes) {
+			hashes.put(path, new String[] {length, lastModified, hash});
+		}
+		return hash;
+	}
+
+	/** Returns a new key for the specified kind of output. */
+	public Key key (String kind) {
+		return new Key(kind);
+	}
+
+	static MessageDigest digest () {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	static String hex (byte[] bytes) {
+		StringBuilder buffer = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			buffer.append(Character.forDigit((b >> 4) & 0xf, 16));
+			buffer.append(Character.forDigit(b & 0xf, 16));
+		}
+		return buffer.toString();
+	}
+
+	/** Computes a cache key from strings and file contents. */
+	public class Key {
+		private final MessageDigest digest = digest();
+
+		Key (String kind) {
+			add(kind);
+			add(System.getProperty("java.version"));
+		}
+
+		public Key add (String value) {
+			try {
+				digest.update(value.getBytes("UTF-8"));
+			} catch (IOException ex) {
+				throw new RuntimeException(ex);
+			}
+			digest.update((byte)0);
+			return this;
+		}
+
+		/** Adds a file name and contents. The key is the same as when the file is added using {@link #add(Paths)}. */
+		public Key add (String name, byte[] bytes) {
+			add(name);
+			add(hex(digest().digest(bytes)));
+			return this;
+		}
+
+		/** Adds the relative path and contents of each file, in sorted order. The absolute paths are not used, so the key is the
+		 * same for a different checkout of the same files. */
+		public Key add (Paths paths) throws IOException {
+			List<String> files = paths.getPaths(), names = paths.getRelativePaths();
+			ArrayList<Integer> order = new ArrayList(files.size());
+			for (int i = 0, n = files.size(); i < n; i++)
+				order.add(i);
+			final List<String> sortNames = names;
+			Collections.sort(order, new Comparator<Integer>() {
+				public int compare (Integer a, Integer b) {
+					return sortNames.get(a).compareTo(sortNames.get(b));
+				}
+			});
+			for (int i : order) {
+				String file = files.get(i);
+				if (new File(file).isDirectory()) continue;
+				add(names.get(i).replace('\\', '/'));
+				add(hash(file));
+			}
+			return this;
+		}
+
+		public String toString () {
+			try {
+				return hex(((MessageDigest)digest.clone()).digest());
+			} catch (CloneNotSupportedException ex) {
+				throw new RuntimeException(ex);
+			}
+		}
+	}
+}
@@ -0,0 +1,131 @@
+
+package com.esotericsoftware.scar;
+
+import static com.esotericsoftware.minlog.Log.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map.Entry;
+
+import javax.tools.JavaCompiler;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+/** Keeps the system Java compiler and its file managers between compilations, so javac's opened classpath archives and platform
+ * classes are reused rather than reopened for every compile. File managers are pooled so compilations can run concurrently. A
+ * file manager is discarded if an archive that was on its classpath has been modified since it was used.
+ * <p>
+ * {@link Scar#compileService} is shared by {@link Scar#compile(com.esotericsoftware.wildcard.Paths, com.esotericsoftware.wildcard.Paths, String, String)}
+ * and {@link Scar#executeCode(String, HashMap, Project)}, and so by all projects in a build and by build scripts. */
+public class CompileService {
+	private JavaCompiler compiler;
+	private final ArrayList<StandardJavaFileManager> free = new ArrayList();
+	private final IdentityHashMap<StandardJavaFileManager, HashMap<String, Long>> archives = new IdentityHashMap();
+
+	/** Returns the system Java compiler.
+	 * @throws RuntimeException if no compiler is available. */
+	public synchronized JavaCompiler getCompiler () {
+		if (compiler == null) {
+			compiler = ToolProvider.getSystemJavaCompiler();
+			if (compiler == null)
+				throw new RuntimeException("No compiler available. Ensure you are running from a 1.6+ JDK, and not a JRE.");
+		}
+		return compiler;
+	}
+
+	/** Returns a file manager to use for a compilation with the specified classpath. The file manager must not be closed, instead
+	 * it must be returned using {@link #free(StandardJavaFileManager)}.
+	 * @param classpath May be null. */
+	public StandardJavaFileManager obtain (Iterable<String> classpath) {
+		JavaCompiler compiler = getCompiler();
+		StandardJavaFileManager fileManager = null;
+		synchronized (this) {
+			while (!free.isEmpty()) {
+				StandardJavaFileManager candidate = free.remove(free.size() - 1);
+				if (isCurrent(candidate)) {
+					fileManager = candidate;
+					break;
+				}
+				close(candidate);
+			}
+		}
+		if (fileManager == null) {
+			if (TRACE) trace("scar", "Creating file manager.");
+			fileManager = compiler.getStandardFileManager(null, null, null);
+		}
+		HashMap<String, Long> stamps;
+		synchronized (this) {
+			stamps = archives.get(fileManager);
+			if (stamps == null) {
+				stamps = new HashMap();
+				archives.put(fileManager, stamps);
+			}
+		}
+		if (classpath != null) {
+			for (String path : classpath) {
+				File file = new File(path);
+				if (file.isFile()) stamps.put(path, stamp(file));
+			}
+		}
+		return fileManager;
+	}
+
+	/** Returns a file manager obtained from {@link #obtain(Iterable)} to the pool. */
+	public void free (StandardJavaFileManager fileManager) {
+		if (fileManager == null) throw new IllegalArgumentException("fileManager cannot be null.");
+		try {
+			fileManager.flush();
+			// Don't let the output directory or classpath of one compilation leak into the next, which may not set them.
+			fileManager.setLocation(StandardLocation.CLASS_OUTPUT, null);
+			fileManager.setLocation(StandardLocation.CLASS_PATH, null);
+		} catch (IOException ex) {
+			if (DEBUG) debug("scar", "Unable to reset file manager.", ex);
+			close(fileManager);
+			return;
+		}
+		synchronized (this) {
+			free.add(fileManager);
+		}
+	}
+
+	/** Closes all pooled file managers, releasing the archives they have open. */
+	public void clear () {
+		ArrayList<StandardJavaFileManager> closing;
+		synchronized (this) {
+			closing = new ArrayList(free);
+			free.clear();
+		}
+		for (StandardJavaFileManager fileManager : closing)
+			close(fileManager);
+	}
+
+	private boolean isCurrent (StandardJavaFileManager fileManager) {
+		HashMap<String, Long> stamps = archives.get(fileManager);
+		if (stamps == null) return true;
+		for (Entry<String, Long> entry : stamps.entrySet()) {
+			if (stamp(new File(entry.getKey())) != entry.getValue()) {
+				if (DEBUG) debug("scar", "Classpath archive modified, discarding file manager: " + entry.getKey());
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void close (StandardJavaFileManager fileManager) {
+		synchronized (this) {
+			archives.remove(fileManager);
+		}
+		try {
+			fileManager.close();
+		} catch (IOException ignored) {
+		}
+	}
+
+	static private long stamp (File file) {
+		return file.lastModified() * 31 + file.length();
+	}
+}
@@ -0,0 +1,297 @@
+
+package com.esotericsoftware.scar;
+
+import static com.esotericsoftware.minlog.Log.*;
+import static com.esotericsoftware.scar.Scar.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.esotericsoftware.scar.Scar.CompileListener;
+import com.esotericsoftware.wildcard.Paths;
+
+/** Compiles a large set of source files as multiple javac tasks that run concurrently. The source files are grouped by package
+ * and the imports of each file are scanned to find the dependencies between packages. Packages that depend on each other are
+ * kept in the same shard. Shards are compiled in waves: a wave only contains packages whose dependencies were compiled in an
+ * earlier wave, and the shards in a wave are compiled at the same time. Each shard has the output directory on its classpath and
+ * the source directories on its sourcepath, so a dependency the import scan missed is still found. If any shard fails, all the
+ * source is compiled in a single task, so compile errors are reported the same as for {@link Scar#compile(Paths, Paths, String,
+ * String)}. */
+public class CompileShards {
+	static private final Pattern commentPattern = Pattern.compile("/\\*.*?\\*/|//[^\\n]*", Pattern.DOTALL);
+	static private final Pattern packagePattern = Pattern.compile("\\bpackage\\s+([\\w.\\s]+?)\\s*;");
+	static private final Pattern importPattern = Pattern.compile("\\bimport\\s+(?:static\\s+)?([\\w.\\s]+?)(\\.\\s*\\*)?\\s*;");
+
+	/** Compiles the source files to class files in the output directory.
+	 * @param listener May be null.
+	 * @param shards The maximum number of shards in each wave. If less than 2, the source is compiled in a single task.
+	 * @param threads The maximum number of shards to compile at the same time.
+	 * @param heap May be null. If not null, each shard is compiled by a separate javac process with this maximum heap size, eg
+	 *           "1g". Ignored if a listener is given, since the listener can only be notified by javac running in this process. */
+	static public void compile (Paths source, Paths classpath, String outputDir, String targetVersion,
+		final CompileListener listener, int shards, int threads, String heap) throws IOException {
+		if (source == null) throw new IllegalArgumentException("source cannot be null.");
+		if (outputDir == null) throw new IllegalArgumentException("outputDir cannot be null.");
+
+		List<List<Paths>> waves = shards < 2 ? null : waves(source, shards);
+		if (waves == null) {
+			Scar.compile(source, classpath, outputDir, targetVersion, listener);
+			return;
+		}
+		if (listener != null) heap = null;
+
+		LinkedHashSet<String> roots = new LinkedHashSet();
+		List<String> files = source.getPaths(), names = source.getRelativePaths();
+		for (int i = 0, n = files.size(); i < n; i++) {
+			String file = files.get(i);
+			roots.add(file.substring(0, file.length() - names.get(i).length()));
+		}
+		StringBuilder sourcepath = new StringBuilder(256);
+		for (String root : roots) {
+			if (sourcepath.length() > 0) sourcepath.append(File.pathSeparatorChar);
+			sourcepath.append(root);
+		}
+		final List<String> options = Arrays.asList("-sourcepath", sourcepath.toString(), "-implicit:none");
+
+		final Paths shardClasspath = new Paths();
+		if (classpath != null) shardClasspath.add(classpath);
+		shardClasspath.addFile(outputDir);
+		mkdir(outputDir);
+
+		if (DEBUG) {
+			int count = 0;
+			for (List<Paths> wave : waves)
+				count += wave.size();
+			debug("scar", "Compiling " + source.count() + " files as " + count + " shards in " + waves.size() + " waves.");
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+			final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread (Runnable runnable) {
+				Thread thread = new Thread(runnable, "compile-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		Throwable failure = null;
+		try {
+			for (List<Paths> wave : waves) {
+				ArrayList<Future> futures = new ArrayList();
+				for (final Paths shard : wave) {
+					final String shardHeap = heap;
+					final String shardOutputDir = outputDir, shardTarget = targetVersion;
+					futures.add(executor.submit(new Callable() {
+						public Object call () throws Exception {
+							if (shardHeap != null)
+								fork(shard, shardClasspath, shardOutputDir, shardTarget, options, shardHeap);
+							else
+								Scar.compile(shard, shardClasspath, shardOutputDir, shardTarget, listener, options);
+							return null;
+						}
+					}));
+				}
+				for (Future future : futures) {
+					try {
+						future.get();
+					} catch (ExecutionException ex) {
+						if (failure == null) failure = ex.getCause();
+					}
+				}
+				if (failure != null) break;
+			}
+		} catch (InterruptedException ex) {
+			throw new RuntimeException("Interrupted while compiling.", ex);
+		} finally {
+			executor.shutdownNow();
+		}
+		if (failure == null) return;
+
+		if (DEBUG) debug("scar", "Shard compile failed, compiling all source in a single task.", failure);
+		Scar.compile(source, classpath, outputDir, targetVersion, listener);
+	}
+
+	/** Compiles the source files with a separate javac process. */
+	static private void fork (Paths source, Paths classpath, String outputDir, String targetVersion, List<String> options,
+		String heap) throws IOException {
+		String javac = new File(JAVA_HOME, "bin/javac").getPath();
+		if (!fileExists(javac) && !fileExists(javac + ".exe")) javac = new File(JAVA_HOME, "../bin/javac").getPath();
+		if (!fileExists(javac) && !fileExists(javac + ".exe")) javac = "javac";
+
+		StringBuilder buffer = new StringBuilder(4096);
+		for (String file : source.filesOnly())
+			buffer.append('"').append(file.replace("\\", "\\\\")).append("\"\n");
+		String argFile = tempFile("javac");
+		writeFile(argFile, buffer.toString(), false, "UTF-8");
+
+		ArrayList<String> command = new ArrayList();
+		command.add(javac);
+		command.add("-J-Xmx" + heap);
+		command.add("-nowarn");
+		command.add("-d");
+		command.add(outputDir);
+		command.addAll(compileOptions(targetVersion));
+		command.addAll(options);
+		command.add("-classpath");
+		command.add(classpath.toString(File.pathSeparator));
+		command.add("@" + argFile);
+		Tracer.Span span = Tracer.span("compile", "javac", source.count() + " files, forked");
+		try {
+			shell(command.toArray(new String[command.size()]));
+		} finally {
+			span.end();
+			delete(argFile);
+		}
+	}
+
+	/** Groups the source files into waves of shards.
+	 * @return null if the source cannot be split into more than one shard. */
+	static List<List<Paths>> waves (Paths source, int shards) throws IOException {
+		// Find the package and imports of each file.
+		LinkedHashMap<String, ArrayList<String>> packageFiles = new LinkedHashMap();
+		HashMap<String, LinkedHashSet<String>> packageImports = new HashMap();
+		for (String file : source.filesOnly()) {
+			String code = commentPattern.matcher(readString(file, "UTF-8")).replaceAll(" ");
+			Matcher matcher = packagePattern.matcher(code);
+			String packageName = matcher.find() ? matcher.group(1).replaceAll("\\s", "") : "";
+			ArrayList<String> list = packageFiles.get(packageName);
+			if (list == null) {
+				list = new ArrayList();
+				packageFiles.put(packageName, list);
+				packageImports.put(packageName, new LinkedHashSet());
+			}
+			list.add(file);
+			matcher = importPattern.matcher(code);
+			while (matcher.find())
+				packageImports.get(packageName).add(matcher.group(1).replaceAll("\\s", ""));
+		}
+		if (packageFiles.size() < 2) return null;
+
+		// An import is a dependency on the longest known package that prefixes it, which handles imports of nested classes.
+		LinkedHashMap<String, LinkedHashSet<String>> dependencies = new LinkedHashMap();
+		for (String packageName : packageFiles.keySet()) {
+			LinkedHashSet<String> packageDependencies = new LinkedHashSet();
+			for (String name : packageImports.get(packageName)) {
+				while (true) {
+					if (packageFiles.containsKey(name)) {
+						if (!name.equals(packageName)) packageDependencies.add(name);
+						break;
+					}
+					int index = name.lastIndexOf('.');
+					if (index == -1) break;
+					name = name.substring(0, index);
+				}
+			}
+			dependencies.put(packageName, packageDependencies);
+		}
+
+		// Packages that depend on each other are compiled together. Strongly connected components are found with dependencies
+		// first, so the wave for each can be computed in a single pass.
+		List<List<String>> components = new Components(dependencies).components;
+		HashMap<String, Integer> componentIndex = new HashMap();
+		for (int i = 0, n = components.size(); i < n; i++)
+			for (String packageName : components.get(i))
+				componentIndex.put(packageName, i);
+		int[] waveIndex = new int[components.size()];
+		int waveCount = 0;
+		for (int i = 0, n = components.size(); i < n; i++) {
+			int wave = 0;
+			for (String packageName : components.get(i)) {
+				for (String dependency : dependencies.get(packageName)) {
+					int dependencyIndex = componentIndex.get(dependency);
+					if (dependencyIndex != i) wave = Math.max(wave, waveIndex[dependencyIndex] + 1);
+				}
+			}
+			waveIndex[i] = wave;
+			waveCount = Math.max(waveCount, wave + 1);
+		}
+
+		// Within each wave, put each component in the shard with the fewest files, largest components first.
+		ArrayList<List<Paths>> waves = new ArrayList();
+		for (int wave = 0; wave < waveCount; wave++) {
+			ArrayList<Paths> componentPaths = new ArrayList();
+			for (int i = 0, n = components.size(); i < n; i++) {
+				if (waveIndex[i] != wave) continue;
+				Paths paths = new Paths();
+				for (String packageName : components.get(i))
+					for (String file : packageFiles.get(packageName))
+						paths.addFile(file);
+				componentPaths.add(paths);
+			}
+			Collections.sort(componentPaths, new Comparator<Paths>() {
+				public int compare (Paths a, Paths b) {
+					return b.count() - a.count();
+				}
+			});
+			ArrayList<Paths> shardPaths = new ArrayList();
+			for (Paths paths : componentPaths) {
+				if (shardPaths.size() < shards) {
+					shardPaths.add(paths);
+					continue;
+				}
+				Paths smallest = shardPaths.get(0);
+				for (Paths shard : shardPaths)
+					if (shard.count() < smallest.count()) smallest = shard;
+				smallest.add(paths);
+			}
+			waves.add(shardPaths);
+		}
+		if (waves.size() == 1 && waves.get(0).size() == 1) return null;
+		return waves;
+	}
+
+	/** Finds strongly connected components using Tarjan's algorithm. */
+	static private class Components {
+		final HashMap<String, LinkedHashSet<String>> dependencies;
+		final HashMap<String, Integer> index = new HashMap(), lowLink = new HashMap();
+		final ArrayList<String> stack = new ArrayList();
+		final ArrayList<List<String>> components = new ArrayList();
+		int nextIndex;
+
+		Components (HashMap<String, LinkedHashSet<String>> dependencies) {
+			this.dependencies = dependencies;
+			for (String name : dependencies.keySet())
+				if (!index.containsKey(name)) visit(name);
+		}
+
+		private void visit (String name) {
+			index.put(name, nextIndex);
+			lowLink.put(name, nextIndex);
+			nextIndex++;
+			stack.add(name);
+			for (String dependency : dependencies.get(name)) {
+				if (!index.containsKey(dependency)) {
+					visit(dependency);
+					lowLink.put(name, Math.min(lowLink.get(name), lowLink.get(dependency)));
+				} else if (stack.contains(dependency)) //
+					lowLink.put(name, Math.min(lowLink.get(name), index.get(dependency)));
+			}
+			if (lowLink.get(name).equals(index.get(name))) {
+				ArrayList<String> component = new ArrayList();
+				while (true) {
+					String member = stack.remove(stack.size() - 1);
+					component.add(member);
+					if (member.equals(name)) break;
+				}
+				components.add(component);
+			}
+		}
+	}
+}
@@ -0,0 +1,147 @@
+
+package com.esotericsoftware.scar;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.zip.Deflater;
+
+/** Decides how each entry of a ZIP or JAR file is compressed. Entries with an extension of an already compressed format, such
+ * as PNG, OGG, or JAR, are stored without compression. Other entries are deflated at the policy's level, unless a sample of
+ * their bytes shows they are incompressible or deflating does not make them smaller.
+ * <p>
+ * {@link Scar#compression} is used when no policy is given. {@link Build#compression(Project)} returns the policy for a
+ * project. */
+public class CompressionPolicy {
+	/** The extensions of formats that are already compressed. */
+	static public final String[] compressedExtensions = {"png", "jpg", "jpeg", "gif", "webp", "ogg", "oga", "opus", "mp3", "m4a",
+		"aac", "flac", "mp4", "m4v", "webm", "mkv", "zip", "jar", "war", "apk", "gz", "tgz", "bz2", "xz", "lzma", "7z", "zst",
+		"woff", "woff2", "pack"};
+
+	/** Deflates with the best compression. Used for release builds, where size matters more than time. */
+	static public final CompressionPolicy release = new CompressionPolicy("release", Deflater.BEST_COMPRESSION, true,
+		compressedExtensions);
+
+	/** Deflates with the fastest compression. Used for development builds, where time matters more than size. */
+	static public final CompressionPolicy fast = new CompressionPolicy("fast", Deflater.BEST_SPEED, true, compressedExtensions);
+
+	/** Stores every entry without compression. */
+	static public final CompressionPolicy store = new CompressionPolicy("store", Deflater.NO_COMPRESSION, false);
+
+	/** Bytes may be incompressible when the entropy of a sample is above this many bits per byte. */
+	static private final double maxEntropy = 7.9;
+	/** Bytes are incompressible when deflating the sample at the fastest level leaves more than this fraction of its size. */
+	static private final double minRatio = 0.97;
+	/** Entries smaller than this are not sampled. Deflating them is cheap and the sample would be too small to be reliable. */
+	static private final int minSampleSize = 1024;
+	static private final int sampleSize = 4096;
+
+	private final String name;
+	private final int level;
+	private final boolean sample;
+	private final HashSet<String> storedExtensions = new HashSet();
+
+	/** @param level The {@link Deflater} compression level, 0 to store every entry.
+	 * @param sample If true, entries whose bytes look incompressible are stored.
+	 * @param storedExtensions The extensions, without the ".", of entries that are stored without compression. */
+	public CompressionPolicy (int level, boolean sample, String... storedExtensions) {
+		this("level" + level, level, sample, storedExtensions);
+	}
+
+	private CompressionPolicy (String name, int level, boolean sample, String... storedExtensions) {
+		if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+			throw new IllegalArgumentException("level must be between 0 and 9: " + level);
+		this.name = name;
+		this.level = level;
+		this.sample = sample;
+		for (String extension : storedExtensions)
+			this.storedExtensions.add(extension.toLowerCase());
+	}
+
+	public int getLevel () {
+		return level;
+	}
+
+	/** Returns true if the entry should be stored without compression, based on its name. */
+	public boolean store (String name) {
+		if (level == Deflater.NO_COMPRESSION) return true;
+		int dotIndex = name.lastIndexOf('.');
+		if (dotIndex == -1 || dotIndex < name.lastIndexOf('/')) return false;
+		return storedExtensions.contains(name.substring(dotIndex + 1).toLowerCase());
+	}
+
+	/** Returns true if the entry should be stored without compression, based on its name and contents.
+	 * @param count The number of bytes in the entry. */
+	public boolean store (String name, byte[] bytes, int count) {
+		if (store(name)) return true;
+		return sample && incompressible(bytes, count);
+	}
+
+	/** Returns true if the bytes look incompressible, using samples from the start, middle, and end. Already compressed data has
+	 * nearly 8 bits of entropy per byte, while text and class files have much less. Data with evenly spread byte values can still
+	 * have structure that deflate finds, such as uncompressed audio or images, so a sample with high entropy is only considered
+	 * incompressible if deflating it at the fastest level barely makes it smaller. */
+	static boolean incompressible (byte[] bytes, int count) {
+		if (count < minSampleSize) return false;
+		int[] starts = count <= sampleSize * 3 ? new int[] {0} : new int[] {0, count / 2 - sampleSize / 2, count - sampleSize};
+		int length = count <= sampleSize * 3 ? count : sampleSize;
+		int[] counts = new int[256];
+		for (int start : starts)
+			for (int i = start, n = start + length; i < n; i++)
+				counts[bytes[i] & 0xff]++;
+		int total = starts.length * length;
+		double entropy = 0;
+		int used = 0;
+		for (int value : counts) {
+			if (value == 0) continue;
+			used++;
+			double p = value / (double)total;
+			entropy -= p * Math.log(p);
+		}
+		// Correct for a small sample underestimating the entropy.
+		entropy += (used - 1) / (2.0 * total);
+		if (entropy / Math.log(2) <= maxEntropy) return false;
+
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+		try {
+			byte[] buffer = new byte[1024];
+			long compressed = 0;
+			for (int start : starts) {
+				deflater.setInput(bytes, start, length);
+				while (!deflater.needsInput())
+					compressed += deflater.deflate(buffer);
+			}
+			deflater.finish();
+			while (!deflater.finished())
+				compressed += deflater.deflate(buffer);
+			return compressed > total * minRatio;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/** Returns the policy for the name: "release", "fast", "store", or a deflate level from 0 to 9 which uses the default
+	 * extensions and sampling. */
+	static public CompressionPolicy get (String name) {
+		if (name == null) throw new IllegalArgumentException("name cannot be null.");
+		if (name.equals("release")) return release;
+		if (name.equals("fast")) return fast;
+		if (name.equals("store")) return store;
+		int level;
+		try {
+			level = Integer.parseInt(name);
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("Unknown compression: " + name);
+		}
+		if (level == Deflater.NO_COMPRESSION) return store;
+		return new CompressionPolicy(level, true, compressedExtensions);
+	}
+
+	public String toString () {
+		if (name.startsWith("level")) {
+			String[] extensions = storedExtensions.toArray(new String[storedExtensions.size()]);
+			Arrays.sort(extensions);
+			return name + (sample ? ",sample," : ",") + Arrays.toString(extensions);
+		}
+		return name;
+	}
+}
@@ -0,0 +1,322 @@
+
+package com.esotericsoftware.scar;
+
+import static com.esotericsoftware.minlog.Log.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+import com.esotericsoftware.wildcard.Paths;
+
+/** Records the path, size, modification time, and content hash of files under a key, so a later build can tell whether the files
+ * changed since they were recorded using only a stat call per file. A file whose size or time differs is hashed, so a file that
+ * was touched or rewritten with the same contents is not considered changed.
+ * <p>
+ * The journal is kept in memory and written to its file by {@link #save()}, to a temporary file that is renamed so the file is
+ * never partially written. {@link Scar#journal(String)} returns a journal shared by all projects using the same file.
+ * {@link Build#journal(Project)} is used by {@link Build#compile(Project)}, {@link Build#jar(Project)}, and
+ * {@link Build#dist(Project)} for projects with the "incremental" property, and can be used by project documents to skip
+ * custom steps when their files are unchanged. */
+public class FileJournal {
+	static private final int version = 2;
+	/** File times can be this coarse, so a file modified this recently may change again without its time changing. */
+	static private final long racy = 2000;
+	/** The length of a SHA-1 hash. */
+	static private final int hashLength = 20;
+
+	private final String file;
+	private final HashMap<String, Record> records = new HashMap();
+	private boolean dirty;
+
+	/** Loads the journal from the file, if it exists and can be read. */
+	public FileJournal (String file) {
+		if (file == null) throw new IllegalArgumentException("file cannot be null.");
+		this.file = file;
+		load();
+	}
+
+	public String getFile () {
+		return file;
+	}
+
+	/** Returns true if the files are the same files recorded for the key with the same stamp, and none of them changed.
+	 * @param stamp May be null. A string describing other inputs, such as options, which must equal the recorded stamp. */
+	public boolean isCurrent (String key, String stamp, Paths... paths) {
+		if (key == null) throw new IllegalArgumentException("key cannot be null.");
+		Record record;
+		synchronized (this) {
+			record = records.get(key);
+		}
+		if (record == null || !record.stamp.equals(stamp == null ? "" : stamp)) return false;
+		String[] files = files(paths);
+		if (files.length != record.files.length) return false;
+		for (String file : files) {
+			Integer index = record.index.get(file);
+			if (index == null || changed(key, record, index)) {
+				if (TRACE) trace("scar", "Journal changed: " + key + ", " + file);
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** Returns the stamp recorded for the key, or null if nothing is recorded for the key. */
+	public String getStamp (String key) {
+		if (key == null) throw new IllegalArgumentException("key cannot be null.");
+		Record record;
+		synchronized (this) {
+			record = records.get(key);
+		}
+		return record == null ? null : record.stamp;
+	}
+
+	/** Returns the files that are new or changed since they were recorded for the key. Files recorded for the key that no longer
+	 * exist are not returned, see {@link #isCurrent(String, String, Paths...)}. */
+	public Paths changed (String key, Paths... paths) {
+		if (key == null) throw new IllegalArgumentException("key cannot be null.");
+		Record record;
+		synchronized (this) {
+			record = records.get(key);
+		}
+		Paths changed = new Paths();
+		for (String file : files(paths)) {
+			Integer index = record == null ? null : record.index.get(file);
+			if (index == null || changed(key, record, index)) changed.addFile(file);
+		}
+		return changed;
+	}
+
+	/** Records the current state of the files for the key, replacing what was recorded before. Files that were already recorded
+	 * for the key with the same size and time are not hashed again.
+	 * @param stamp May be null. */
+	public void record (String key, String stamp, Paths... paths) throws IOException {
+		if (key == null) throw new IllegalArgumentException("key cannot be null.");
+		Record previous;
+		synchronized (this) {
+			previous = records.get(key);
+		}
+		String[] files = files(paths);
+		Record record = new Record(stamp == null ? "" : stamp, files.length);
+		for (int i = 0, n = files.length; i < n; i++) {
+			String path = files[i];
+			File file = new File(path);
+			long length = file.length(), modified = file.lastModified();
+			Integer index = previous == null ? null : previous.index.get(path);
+			if (index != null && previous.lengths[index] == length && previous.modified[index] == modified
+				&& modified < previous.times[index] - racy)
+				record.set(i, path, length, modified, previous.hashes[index], previous.times[index]);
+			else {
+				long time = System.currentTimeMillis();
+				record.set(i, path, length, modified, hash(file), time);
+			}
+		}
+		synchronized (this) {
+			records.put(key, record);
+			dirty = true;
+		}
+		if (TRACE) trace("scar", "Journal recorded: " + key + ", " + files.length + " files");
+	}
+
+	/** Forgets the files recorded for the key. */
+	public synchronized void remove (String key) {
+		if (records.remove(key) != null) dirty = true;
+	}
+
+	/** Forgets all recorded files. */
+	public synchronized void clear () {
+		if (records.isEmpty()) return;
+		records.clear();
+		dirty = true;
+	}
+
+	/** Writes the journal to its file, if anything was recorded or removed since it was loaded or last saved. */
+	public synchronized void save () throws IOException {
+		if (!dirty) return;
+		Tracer.Span span = Tracer.span("journal", "save", file);
+		File journalFile = new File(file);
+		File tempFile = null;
+		try {
+			Scar.mkdir(journalFile.getParent());
+			tempFile = File.createTempFile(journalFile.getName(), ".tmp", journalFile.getParentFile());
+			// Paths are written once and referenced by index, since the same files are usually recorded for many keys.
+			LinkedHashMap<String, Integer> pathIndexes = new LinkedHashMap();
+			for (Record record : records.values())
+				for (String path : record.files)
+					if (!pathIndexes.containsKey(path)) pathIndexes.put(path, pathIndexes.size());
+
+			DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+			try {
+				output.writeInt(version);
+				output.writeInt(pathIndexes.size());
+				for (String path : pathIndexes.keySet())
+					ProjectRegistry.writeString(output, path);
+				output.writeInt(records.size());
+				for (Entry<String, Record> entry : records.entrySet()) {
+					Record record = entry.getValue();
+					ProjectRegistry.writeString(output, entry.getKey());
+					ProjectRegistry.writeString(output, record.stamp);
+					output.writeInt(record.files.length);
+					for (int i = 0, n = record.files.length; i < n; i++) {
+						output.writeInt(pathIndexes.get(record.files[i]));
+						output.writeLong(record.lengths[i]);
+						output.writeLong(record.modified[i]);
+						output.writeLong(record.times[i]);
+						output.write(record.hashes[i]);
+					}
+				}
+			} finally {
+				output.close();
+			}
+			try {
+				Files.move(tempFile.toPath(), journalFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException ex) {
+				Files.move(tempFile.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			dirty = false;
+			if (DEBUG) debug("scar", "Journal saved: " + file + " (" + records.size() + " keys, " + pathIndexes.size() + " files)");
+		} finally {
+			if (tempFile != null) tempFile.delete();
+			span.end();
+		}
+	}
+
+	private void load () {
+		File journalFile = new File(file);
+		if (!journalFile.exists()) return;
+		DataInputStream input = null;
+		try {
+			input = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+			if (input.readInt() != version) return;
+			String[] paths = new String[input.readInt()];
+			for (int i = 0, n = paths.length; i < n; i++)
+				paths[i] = ProjectRegistry.readString(input);
+			HashMap<String, Record> records = new HashMap();
+			for (int i = 0, n = input.readInt(); i < n; i++) {
+				String key = ProjectRegistry.readString(input), stamp = ProjectRegistry.readString(input);
+				int count = input.readInt();
+				Record record = new Record(stamp, count);
+				for (int ii = 0; ii < count; ii++) {
+					String path = paths[input.readInt()];
+					long length = input.readLong(), modified = input.readLong(), time = input.readLong();
+					byte[] hash = new byte[hashLength];
+					input.readFully(hash);
+					record.set(ii, path, length, modified, hash, time);
+				}
+				records.put(key, record);
+			}
+			this.records.putAll(records);
+			if (TRACE) trace("scar", "Journal loaded: " + file + " (" + records.size() + " keys)");
+		} catch (Exception ex) {
+			if (DEBUG) debug("scar", "Unable to read journal: " + file, ex);
+		} finally {
+			try {
+				if (input != null) input.close();
+			} catch (Exception ignored) {
+			}
+		}
+	}
+
+	/** Returns true if the recorded file no longer exists or its contents differ. The file is only hashed if its size or time
+	 * differs, or if it was modified so close to when it was hashed that its time may not have changed. When the hash matches,
+	 * the recorded time is updated so the file is not hashed again once it is no longer that recent. */
+	private boolean changed (String key, Record record, int index) {
+		File file = new File(record.files[index]);
+		long length = file.length(), modified = file.lastModified();
+		if (modified == 0) return true;
+		if (length != record.lengths[index]) return true;
+		if (modified == record.modified[index] && modified < record.times[index] - racy) return false;
+		long time = System.currentTimeMillis();
+		try {
+			if (!Arrays.equals(hash(file), record.hashes[index])) return true;
+		} catch (IOException ex) {
+			return true;
+		}
+		if (TRACE) trace("scar", "Journal file touched but unchanged: " + file);
+		synchronized (this) {
+			record.modified[index] = modified;
+			record.times[index] = time;
+			if (records.get(key) == record) dirty = true;
+		}
+		return false;
+	}
+
+	/** Returns the sorted, absolute paths of the files, without directories or duplicates. */
+	static private String[] files (Paths... paths) {
+		ArrayList<String> files = new ArrayList();
+		for (Paths p : paths) {
+			if (p == null) continue;
+			for (String path : p.filesOnly())
+				files.add(new File(path).getAbsolutePath());
+		}
+		String[] array = files.toArray(new String[files.size()]);
+		Arrays.sort(array);
+		int count = 0;
+		for (int i = 0, n = array.length; i < n; i++)
+			if (count == 0 || !array[i].equals(array[count - 1])) array[count++] = array[i];
+		return count == array.length ? array : Arrays.copyOf(array, count);
+	}
+
+	static private byte[] hash (File file) throws IOException {
+		MessageDigest digest = BuildCache.digest();
+		InputStream input = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[8192];
+			while (true) {
+				int count = input.read(buffer);
+				if (count == -1) break;
+				digest.update(buffer, 0, count);
+			}
+		} finally {
+			try {
+				input.close();
+			} catch (Exception ignored) {
+			}
+		}
+		return digest.digest();
+	}
+
+	/** The files recorded for a key. */
+	static private class Record {
+		final String stamp;
+		final String[] files;
+		final long[] lengths, modified;
+		/** When each file was last hashed, taken before it was read. */
+		final long[] times;
+		final byte[][] hashes;
+		final HashMap<String, Integer> index = new HashMap();
+
+		Record (String stamp, int count) {
+			this.stamp = stamp;
+			files = new String[count];
+			lengths = new long[count];
+			modified = new long[count];
+			times = new long[count];
+			hashes = new byte[count][];
+		}
+
+		void set (int i, String file, long length, long modified, byte[] hash, long time) {
+			files[i] = file;
+			lengths[i] = length;
+			this.modified[i] = modified;
+			hashes[i] = hash;
+			times[i] = time;
+			index.put(file, i);
+		}
+	}
+}
@@ -0,0 +1,122 @@
+
+package com.esotericsoftware.scar;
+
+import static com.esotericsoftware.minlog.Log.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import com.esotericsoftware.wildcard.Paths;
+
+/** Keeps the results of {@link Paths#glob(String, String...)} by canonical root directory and patterns. Along with each result,
+ * the modification time of each directory the patterns can descend into is stored. Adding, removing, or renaming a file changes
+ * the modification time of its directory, so a result is only used while none of those directories changed. Checking the
+ * directories is much cheaper than listing them and matching every file again.
+ * <p>
+ * {@link Scar#globs} is used by {@link Project#getPaths(String)}. */
+public class GlobCache {
+	private final HashMap<String, Entry> entries = new HashMap();
+
+	/** Adds the paths matching the patterns under the root directory, using the cached result if it is current.
+	 * @param dirPattern A root directory, optionally followed by pipe separated patterns, eg "src|**&#47;*.java". */
+	public void glob (Paths paths, String dirPattern) {
+		if (paths == null) throw new IllegalArgumentException("paths cannot be null.");
+		if (dirPattern == null) throw new IllegalArgumentException("dirPattern cannot be null.");
+
+		int pipeIndex = dirPattern.indexOf('|');
+		String root = pipeIndex == -1 ? dirPattern : dirPattern.substring(0, pipeIndex);
+		String patterns = pipeIndex == -1 ? "" : dirPattern.substring(pipeIndex);
+		String key = Scar.canonical(root) + patterns;
+
+		Entry entry;
+		synchronized (entries) {
+			entry = entries.get(key);
+		}
+		if (entry != null && entry.isCurrent()) {
+			if (TRACE) trace("scar", "Glob is up to date: " + key);
+			paths.add(entry.paths);
+			return;
+		}
+
+		entry = new Entry();
+		ArrayList<File> dirs = dirs(dirPattern);
+		// Stamp the directories before globbing, so a change made during the glob is seen next time.
+		entry.dirs = dirs.toArray(new File[dirs.size()]);
+		entry.modified = new long[entry.dirs.length];
+		// A directory changed very recently could change again without its time changing, on file systems with coarse times.
+		long racy = System.currentTimeMillis() - 2000;
+		boolean cache = true;
+		for (int i = 0, n = entry.dirs.length; i < n; i++) {
+			entry.modified[i] = entry.dirs[i].lastModified();
+			if (entry.modified[i] > racy) cache = false;
+		}
+		entry.paths = GlobWalker.glob(dirPattern);
+		if (cache) {
+			synchronized (entries) {
+				entries.put(key, entry);
+			}
+		}
+		paths.add(entry.paths);
+	}
+
+	/** Returns the directories whose modification times decide the result of globbing: the root directory, and every directory
+	 * below it if the patterns can match files there. The root is returned even if it doesn't exist, so creating it is seen as a
+	 * change.
+	 * @param dirPattern See {@link #glob(Paths, String)}. */
+	static public ArrayList<File> dirs (String dirPattern) {
+		if (dirPattern == null) throw new IllegalArgumentException("dirPattern cannot be null.");
+		int pipeIndex = dirPattern.indexOf('|');
+		File root = new File(pipeIndex == -1 ? dirPattern : dirPattern.substring(0, pipeIndex));
+		ArrayList<File> dirs = new ArrayList();
+		if (recursive(pipeIndex == -1 ? "" : dirPattern.substring(pipeIndex)))
+			dirs(root, dirs, new HashSet());
+		else
+			dirs.add(root);
+		return dirs;
+	}
+
+	/** Removes all results, so the next glob for each pattern walks the file system. */
+	public void clear () {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	/** Returns true if the patterns can match files below the root directory. */
+	static private boolean recursive (String patterns) {
+		if (patterns.length() == 0) return true;
+		for (String pattern : patterns.substring(1).split("\\|")) {
+			if (pattern.startsWith("!")) continue;
+			if (pattern.indexOf('/') != -1 || pattern.indexOf('\\') != -1 || pattern.contains("**")) return true;
+		}
+		return false;
+	}
+
+	/** Adds the directory and all directories below it. */
+	static private void dirs (File dir, ArrayList<File> dirs, HashSet<String> visited) {
+		dirs.add(dir);
+		File[] files = dir.listFiles();
+		if (files == null) return;
+		for (File file : files) {
+			if (!file.isDirectory()) continue;
+			// Guard against symlink cycles.
+			if (Files.isSymbolicLink(file.toPath()) && !visited.add(Scar.canonical(file.getPath()))) continue;
+			dirs(file, dirs, visited);
+		}
+	}
+
+	static private class Entry {
+		Paths paths;
+		File[] dirs;
+		long[] modified;
+
+		boolean isCurrent () {
+			for (int i = 0, n = dirs.length; i < n; i++)
+				if (dirs[i].lastModified() != modified[i]) return false;
+			return true;
+		}
+	}
+}
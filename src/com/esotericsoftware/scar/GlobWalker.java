@@ -0,0 +1,334 @@
+
+package com.esotericsoftware.scar;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.esotericsoftware.wildcard.Paths;
+
+/** Collects files matching glob patterns like {@link Paths#glob(String, String...)}, with the same results, but walks
+ * directories concurrently using a fork/join pool. The patterns are parsed once. Each directory is listed only if a pattern that
+ * can still match below it has a wildcard, and a directory excluded by a pattern such as "**&#47;.svn/**" is not walked at all,
+ * since everything below it would be excluded. */
+public class GlobWalker {
+	/** The patterns excluded from every glob, in addition to those given. */
+	static final String[] defaultExcludes = {"**/.svn/**"};
+
+	/** Adds the files matching the patterns to the paths.
+	 * @param dir The root directory, or a root directory followed by pipe separated patterns if no patterns are given.
+	 * @param patterns Patterns starting with "!" are excludes. If there are no include patterns, "**" is used. */
+	static public void glob (Paths paths, String dir, String... patterns) {
+		if (paths == null) throw new IllegalArgumentException("paths cannot be null.");
+		if (dir == null) dir = ".";
+		if (patterns != null && patterns.length == 0) {
+			String[] split = dir.split("\\|");
+			if (split.length > 1) {
+				dir = split[0];
+				patterns = new String[split.length - 1];
+				for (int i = 1, n = split.length; i < n; i++)
+					patterns[i - 1] = split[i];
+			}
+		}
+		File dirFile = new File(dir);
+		if (!dirFile.exists()) return;
+
+		ArrayList<Glob> includes = new ArrayList(), excludes = new ArrayList(), nameExcludes = new ArrayList();
+		if (patterns != null) {
+			for (String pattern : patterns) {
+				if (pattern.length() == 0) {
+					paths.glob(dir, patterns);
+					return;
+				}
+				if (pattern.charAt(0) == '!')
+					excludes.add(new Glob(pattern.substring(1)));
+				else
+					includes.add(new Glob(pattern));
+			}
+		}
+		if (includes.isEmpty()) includes.add(new Glob("**"));
+		for (String pattern : defaultExcludes)
+			excludes.add(new Glob(pattern));
+		for (int i = excludes.size() - 1; i >= 0; i--) {
+			Glob exclude = excludes.get(i);
+			// Excludes like "**/name" only match the last name of a path.
+			if (exclude.values.length == 2 && exclude.values[0].equals("**")) nameExcludes.add(excludes.remove(i));
+		}
+		// Patterns that could walk back up past a "**" have state that depends on the order files are visited.
+		for (Glob glob : includes) {
+			if (!glob.isSupported()) {
+				paths.glob(dir, patterns);
+				return;
+			}
+		}
+
+		if (!dirFile.isDirectory()) throw new IllegalArgumentException("File must be a directory: " + dirFile);
+		try {
+			dirFile = dirFile.getCanonicalFile();
+		} catch (IOException ex) {
+			throw new RuntimeException("OS error determining canonical path: " + dirFile, ex);
+		}
+		String rootDir = dirFile.getPath().replace('\\', '/');
+		if (!rootDir.endsWith("/")) rootDir += '/';
+
+		Walk walk = new Walk();
+		walk.includes = includes.toArray(new Glob[includes.size()]);
+		walk.excludes = excludes.toArray(new Glob[excludes.size()]);
+		walk.nameExcludes = nameExcludes.toArray(new Glob[nameExcludes.size()]);
+		int[] ids = new int[walk.includes.length], indexes = new int[walk.includes.length];
+		for (int i = 0, n = ids.length; i < n; i++)
+			ids[i] = i;
+		ForkJoinPool.commonPool().invoke(new DirTask(walk, dirFile, null, ids, indexes, new int[walk.excludes.length]));
+		for (String match : walk.matches)
+			paths.add(rootDir, match);
+	}
+
+	/** Returns the files matching the patterns.
+	 * @see #glob(Paths, String, String...) */
+	static public Paths glob (String dir, String... patterns) {
+		Paths paths = new Paths();
+		glob(paths, dir, patterns);
+		return paths;
+	}
+
+	/** Matches relative paths, such as the names of ZIP entries, against glob patterns without walking the file system. A path
+	 * matches if it would be found by {@link #glob(Paths, String, String...)} in a directory containing it. The default excludes
+	 * are not used. A matcher can be used by many threads. */
+	static public class Matcher {
+		private final Walk walk = new Walk();
+
+		/** @param patterns Patterns starting with "!" are excludes. If there are no include patterns, "**" is used. */
+		public Matcher (String... patterns) {
+			if (patterns == null) throw new IllegalArgumentException("patterns cannot be null.");
+			ArrayList<Glob> includes = new ArrayList(), excludes = new ArrayList(), nameExcludes = new ArrayList();
+			for (String pattern : patterns) {
+				if (pattern.startsWith("!"))
+					excludes.add(new Glob(pattern.substring(1)));
+				else
+					includes.add(new Glob(pattern));
+			}
+			if (includes.isEmpty()) includes.add(new Glob("**"));
+			for (int i = excludes.size() - 1; i >= 0; i--) {
+				Glob exclude = excludes.get(i);
+				if (exclude.values.length == 2 && exclude.values[0].equals("**")) nameExcludes.add(excludes.remove(i));
+			}
+			walk.includes = includes.toArray(new Glob[includes.size()]);
+			walk.excludes = excludes.toArray(new Glob[excludes.size()]);
+			walk.nameExcludes = nameExcludes.toArray(new Glob[nameExcludes.size()]);
+		}
+
+		/** @param path A relative path using "/" or "\". */
+		public boolean matches (String path) {
+			if (path == null) throw new IllegalArgumentException("path cannot be null.");
+			String[] names = path.replace('\\', '/').split("/");
+			int[] excludeIndexes = new int[walk.excludes.length];
+			for (String name : names) {
+				excludeIndexes = walk.exclude(excludeIndexes, name);
+				if (excludeIndexes == null) return false;
+			}
+			if (walk.excludeName(names[names.length - 1])) return false;
+			outer:
+			for (Glob include : walk.includes) {
+				int index = 0;
+				for (int i = 0, n = names.length; i < n; i++) {
+					if (index >= include.values.length || !include.matches(index, names[i])) continue outer;
+					int next = include.incr(index, names[i]);
+					if (i == n - 1) {
+						if (include.wasFinalMatch(next)) return true;
+					} else if (next > index && next >= include.values.length) continue outer; // Exhausted.
+					index = next;
+				}
+			}
+			return false;
+		}
+	}
+
+	static private class Walk {
+		Glob[] includes, excludes, nameExcludes;
+		final ConcurrentLinkedQueue<String> matches = new ConcurrentLinkedQueue();
+
+		/** Returns the exclude state after the name, or null if the path is excluded. An excluded directory has every path below
+		 * it excluded too.
+		 * @param excludeIndexes The index into each exclude's values, or -1 if the exclude can no longer match. */
+		int[] exclude (int[] excludeIndexes, String name) {
+			int[] result = excludeIndexes.clone();
+			for (int i = 0, n = excludes.length; i < n; i++) {
+				int index = result[i];
+				if (index == -1) continue;
+				Glob exclude = excludes[i];
+				if (!exclude.matches(index, name)) {
+					result[i] = -1;
+					continue;
+				}
+				index = exclude.incr(index, name);
+				if (exclude.wasFinalMatch(index)) return null;
+				result[i] = index;
+			}
+			return result;
+		}
+
+		boolean excludeName (String name) {
+			for (Glob exclude : nameExcludes)
+				if (exclude.matches(1, name)) return true;
+			return false;
+		}
+	}
+
+	static private class DirTask extends RecursiveAction {
+		private final Walk walk;
+		private final File dir;
+		private final String relative;
+		private final int[] ids, indexes, excludeIndexes;
+
+		/** @param relative Null for the root directory.
+		 * @param ids The includes that can match below this directory.
+		 * @param indexes The index into each include's values. */
+		DirTask (Walk walk, File dir, String relative, int[] ids, int[] indexes, int[] excludeIndexes) {
+			this.walk = walk;
+			this.dir = dir;
+			this.relative = relative;
+			this.ids = ids;
+			this.indexes = indexes;
+			this.excludeIndexes = excludeIndexes;
+		}
+
+		protected void compute () {
+			if (!dir.canRead()) return;
+			Glob[] includes = walk.includes;
+			ArrayList<DirTask> tasks = new ArrayList();
+
+			boolean scanAll = false;
+			for (int i = 0, n = ids.length; i < n; i++) {
+				if (includes[ids[i]].hasWildcard(indexes[i])) {
+					scanAll = true;
+					break;
+				}
+			}
+			if (!scanAll) {
+				// The patterns name exactly which files to include.
+				for (int i = 0, n = ids.length; i < n; i++)
+					process(includes[ids[i]].values[indexes[i]], new int[] {ids[i]}, new int[] {indexes[i]}, tasks);
+			} else {
+				String[] names = dir.list();
+				if (names == null) return;
+				int[] matchingIds = new int[ids.length], matchingIndexes = new int[ids.length];
+				for (String name : names) {
+					int count = 0;
+					for (int i = 0, n = ids.length; i < n; i++) {
+						if (includes[ids[i]].matches(indexes[i], name)) {
+							matchingIds[count] = ids[i];
+							matchingIndexes[count++] = indexes[i];
+						}
+					}
+					if (count == 0) continue;
+					int[] nameIds = new int[count], nameIndexes = new int[count];
+					System.arraycopy(matchingIds, 0, nameIds, 0, count);
+					System.arraycopy(matchingIndexes, 0, nameIndexes, 0, count);
+					process(name, nameIds, nameIndexes, tasks);
+				}
+			}
+			if (!tasks.isEmpty()) invokeAll(tasks);
+		}
+
+		private void process (String name, int[] ids, int[] indexes, ArrayList<DirTask> tasks) {
+			Glob[] includes = walk.includes;
+			boolean finalMatch = false;
+			int count = 0;
+			for (int i = 0, n = ids.length; i < n; i++) {
+				Glob include = includes[ids[i]];
+				int index = indexes[i], next = include.incr(index, name);
+				if (include.wasFinalMatch(next)) finalMatch = true;
+				if (next > index && next >= include.values.length) continue; // Exhausted.
+				ids[count] = ids[i];
+				indexes[count++] = next;
+			}
+
+			String path = relative == null ? name : relative + File.separator + name;
+			int[] nextExcludeIndexes = walk.exclude(excludeIndexes, name);
+			if (nextExcludeIndexes == null) return; // Excluded, along with everything below it.
+			if (finalMatch && !walk.excludeName(name)) walk.matches.add(path);
+			if (count == 0) return;
+			File file = new File(dir, name);
+			if (!file.isDirectory()) return;
+			int[] nextIds = new int[count], nextIndexes = new int[count];
+			System.arraycopy(ids, 0, nextIds, 0, count);
+			System.arraycopy(indexes, 0, nextIndexes, 0, count);
+			tasks.add(new DirTask(walk, file, path, nextIds, nextIndexes, nextExcludeIndexes));
+		}
+	}
+
+	/** A parsed glob pattern. The position in the pattern is passed as an index rather than stored, so one pattern can be used
+	 * by many threads. */
+	static private class Glob {
+		final String[] values;
+
+		Glob (String pattern) {
+			pattern = pattern.replace('\\', '/');
+			pattern = pattern.replaceAll("\\*\\*[^/]", "**/*");
+			pattern = pattern.replaceAll("[^/]\\*\\*", "*/**");
+			values = pattern.split("/");
+		}
+
+		/** Returns false if the pattern has an empty name or "**" twice in a row. */
+		boolean isSupported () {
+			for (int i = 0, n = values.length; i < n; i++) {
+				if (values[i].length() == 0) return false;
+				if (i > 0 && values[i].equals("**") && values[i - 1].equals("**")) return false;
+			}
+			return true;
+		}
+
+		boolean hasWildcard (int index) {
+			String value = values[index];
+			return value.indexOf('*') != -1 || value.indexOf('?') != -1;
+		}
+
+		/** Returns true if the value at the index matches the name, where "*" matches any characters and "?" matches one
+		 * character. */
+		boolean matches (int index, String name) {
+			String value = values[index];
+			if (value.equals("**")) return true;
+			if (value.indexOf('*') == -1 && value.indexOf('?') == -1) return name.equals(value);
+			int i = 0, j = 0, length = value.length(), nameLength = name.length();
+			while (i < nameLength && j < length && value.charAt(j) != '*') {
+				if (value.charAt(j) != name.charAt(i) && value.charAt(j) != '?') return false;
+				i++;
+				j++;
+			}
+			if (j == length) return nameLength == length;
+			int nameMark = 0, valueMark = 0;
+			while (i < nameLength) {
+				if (j < length && value.charAt(j) == '*') {
+					valueMark = ++j;
+					nameMark = i + 1;
+				} else if (j < length && (value.charAt(j) == name.charAt(i) || value.charAt(j) == '?')) {
+					j++;
+					i++;
+				} else {
+					j = valueMark;
+					i = nameMark++;
+				}
+			}
+			while (j < length && value.charAt(j) == '*')
+				j++;
+			return j >= length;
+		}
+
+		/** Returns the index after the name. The index is only larger if the name was consumed. A "**" stays at the same index
+		 * unless the name matches the value after it. */
+		int incr (int index, String name) {
+			if (!values[index].equals("**")) return index + 1;
+			if (index == values.length - 1) return index;
+			if (matches(index + 1, name)) return index + 2;
+			if (index > 0 && values[index - 1].equals("**")) return index - 1;
+			return index;
+		}
+
+		boolean wasFinalMatch (int index) {
+			return index >= values.length || (index >= values.length - 1 && values[index].equals("**"));
+		}
+	}
+}
@@ -7,30 +7,26 @@ import static com.esotericsoftware.scar.Scar.*;
 import com.esotericsoftware.wildcard.Paths;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStreamWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.Enumeration;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
 import java.util.jar.Attributes;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
-import java.util.jar.JarInputStream;
-import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
-import java.util.zip.Deflater;
-import java.util.zip.ZipEntry;
 
 public class Jar {
-	static private final String manifestFileName = "META-INF" + File.separator + "MANIFEST.MF";
+	static private final String manifestName = "META-INF/MANIFEST.MF";
 
 	static public void jar (String outputFile, String inputDir) throws IOException {
 		jar(outputFile, new Paths(inputDir), null, null);
@@ -47,85 +43,200 @@ public class Jar {
 	/** @param mainClass May be null.
 	 * @param classpath May be null if mainClass is null. */
 	static public void jar (String outputFile, Paths inputPaths, String mainClass, Paths classpath) throws IOException {
+		jar(outputFile, inputPaths, mainClass, classpath, null);
+	}
+
+	/** @param mainClass May be null.
+	 * @param classpath May be null if mainClass is null.
+	 * @param policy May be null to use {@link Scar#compression}. */
+	static public void jar (String outputFile, Paths inputPaths, String mainClass, Paths classpath, CompressionPolicy policy)
+		throws IOException {
 		if (outputFile == null) throw new IllegalArgumentException("jarFile cannot be null.");
 		if (inputPaths == null) throw new IllegalArgumentException("inputPaths cannot be null.");
 
+		jar(outputFile, entries(inputPaths, null), mainClass, classpath, policy);
+	}
+
+	/** Adds the files in the specified paths to a map of JAR entry names to file paths, suitable for
+	 * {@link #jar(String, Map, String, Paths)}. Files replace any entry already in the map with the same name.
+	 * @param entries May be null.
+	 * @return The entries map, or a new map if entries was null. */
+	static public LinkedHashMap<String, Object> entries (Paths inputPaths, LinkedHashMap<String, Object> entries) {
+		if (inputPaths == null) throw new IllegalArgumentException("inputPaths cannot be null.");
+		if (entries == null) entries = new LinkedHashMap();
+
 		inputPaths = inputPaths.filesOnly();
-		if (inputPaths.isEmpty()) {
+		List<String> fullPaths = inputPaths.getPaths();
+		List<String> relativePaths = inputPaths.getRelativePaths();
+		for (int i = 0, n = fullPaths.size(); i < n; i++)
+			entries.put(relativePaths.get(i).replace('\\', '/'), fullPaths.get(i));
+		return entries;
+	}
+
+	/** Writes a JAR containing the specified entries, in order. A META-INF/MANIFEST.MF entry is always written first.
+	 * @param entries Map of entry names using "/" to either a byte[] or the path to a file.
+	 * @param mainClass May be null. If not null and the entries have no manifest, a manifest is generated with a Main-Class and a
+	 *           Class-Path containing the JAR and classpath.
+	 * @param classpath May be null if mainClass is null. */
+	static public void jar (String outputFile, Map<String, Object> entries, String mainClass, Paths classpath) throws IOException {
+		jar(outputFile, entries, mainClass, classpath, null);
+	}
+
+	/** Writes a JAR containing the specified entries, in order, compressed as decided by the policy.
+	 * @param policy May be null to use {@link Scar#compression}.
+	 * @see #jar(String, Map, String, Paths) */
+	static public void jar (String outputFile, Map<String, Object> entries, String mainClass, Paths classpath,
+		CompressionPolicy policy) throws IOException {
+		jar(outputFile, entries, mainClass, classpath, policy, false);
+	}
+
+	/** Writes a JAR containing the specified entries, compressed as decided by the policy.
+	 * @param reproducible If true, the JAR has the same bytes every time it is written from the same entries: the entries are
+	 *           sorted by name, have the time from {@link #reproducibleTime()}, and the generated manifest lists the classpath in
+	 *           sorted order. If the JAR file exists with the same bytes, it is not written, so it keeps its modification time.
+	 * @see #jar(String, Map, String, Paths, CompressionPolicy) */
+	static public void jar (String outputFile, Map<String, Object> entries, String mainClass, Paths classpath,
+		CompressionPolicy policy, boolean reproducible) throws IOException {
+		jar(outputFile, entries, mainClass, classpath, policy, reproducible, false);
+	}
+
+	/** Writes a JAR containing the specified entries, like {@link #jar(String, Map, String, Paths, CompressionPolicy, boolean)},
+	 * reusing the compressed bytes of the JAR file if it exists. Entries with the same name, size, and CRC as an entry in the
+	 * existing JAR are copied from it without being compressed again, so only new and changed entries are compressed. Entries in
+	 * the existing JAR that are not in the map are not written. Reused entries keep the compression they were written with, so the
+	 * existing JAR should have been written with the same policy.
+	 * @see #jar(String, Map, String, Paths, CompressionPolicy, boolean) */
+	static public void update (String outputFile, Map<String, Object> entries, String mainClass, Paths classpath,
+		CompressionPolicy policy, boolean reproducible) throws IOException {
+		jar(outputFile, entries, mainClass, classpath, policy, reproducible, true);
+	}
+
+	static private void jar (String outputFile, Map<String, Object> entries, String mainClass, Paths classpath,
+		CompressionPolicy policy, boolean reproducible, boolean update) throws IOException {
+		if (outputFile == null) throw new IllegalArgumentException("jarFile cannot be null.");
+		if (entries == null) throw new IllegalArgumentException("entries cannot be null.");
+
+		if (entries.isEmpty()) {
 			if (WARN) warn("scar", "No files to JAR.");
 			return;
 		}
 
-		List<String> fullPaths = inputPaths.getPaths();
-		List<String> relativePaths = inputPaths.getRelativePaths();
-		int manifestIndex = relativePaths.indexOf(manifestFileName);
+		ArrayList<String> names = new ArrayList(entries.keySet());
+		if (reproducible) Collections.sort(names);
+		ArrayList<Object> sources = new ArrayList(names.size());
+		if (reproducible) {
+			for (String name : names)
+				sources.add(entries.get(name));
+		} else
+			sources.addAll(entries.values());
+		int manifestIndex = names.indexOf(manifestName);
 		if (manifestIndex > 0) {
 			// Ensure MANIFEST.MF is first.
-			relativePaths.remove(manifestIndex);
-			relativePaths.add(0, manifestFileName);
-			String manifestFullPath = fullPaths.get(manifestIndex);
-			fullPaths.remove(manifestIndex);
-			fullPaths.add(0, manifestFullPath);
-		} else if (mainClass != null) {
-			if (DEBUG) debug("scar", "Generating JAR manifest.");
-			String manifestFile = tempFile("manifest");
-			relativePaths.add(0, manifestFileName);
-			fullPaths.add(0, manifestFile);
-
-			Manifest manifest = new Manifest();
-			Attributes attributes = manifest.getMainAttributes();
-			attributes.putValue(Attributes.Name.MANIFEST_VERSION.toString(), "1.0");
-			if (DEBUG) debug("scar", "Main class: " + mainClass);
-			attributes.putValue(Attributes.Name.MAIN_CLASS.toString(), mainClass);
-			StringBuilder buffer = new StringBuilder(512);
-			buffer.append(fileName(outputFile));
-			buffer.append(" .");
-			for (String name : classpath.getRelativePaths()) {
-				buffer.append(' ');
-				buffer.append(name);
+			names.add(0, names.remove(manifestIndex));
+			sources.add(0, sources.remove(manifestIndex));
+		} else if (manifestIndex == -1 && mainClass != null) {
+			names.add(0, manifestName);
+			sources.add(0, manifest(outputFile, mainClass, classpath, reproducible));
+		}
+
+		ZipReader previous = null;
+		if (update && new File(outputFile).isFile()) {
+			try {
+				previous = new ZipReader(outputFile);
+			} catch (IOException ex) {
+				if (DEBUG) debug("scar", "Unable to read existing JAR, creating it: " + outputFile, ex);
 			}
-			attributes.putValue(Attributes.Name.CLASS_PATH.toString(), buffer.toString());
-			FileOutputStream output = new FileOutputStream(manifestFile);
+		}
+		if (previous == null) {
+			if (DEBUG) debug("scar", "Creating JAR (" + entries.size() + " entries): " + outputFile);
+		} else {
+			if (DEBUG) debug("scar", "Updating JAR (" + entries.size() + " entries): " + outputFile);
+		}
+
+		mkdir(new File(outputFile).getParent());
+		Tracer.Span span = Tracer.span("file", previous == null ? "jar" : "update", outputFile);
+		// The existing JAR is read while the new one is written, so the new one replaces it after the reader is closed.
+		File tempFile = null;
+		if (previous != null) tempFile = File.createTempFile("scar", ".jar", new File(outputFile).getAbsoluteFile().getParentFile());
+		try {
+			// Entries are deflated concurrently and written in order.
+			ZipWriter output = previous == null ? new ZipWriter(outputFile, policy, threads(), reproducible)
+				: new ZipWriter(tempFile.getPath(), policy, threads());
+			if (reproducible) output.setTime(reproducibleTime());
 			try {
-				manifest.write(output);
+				for (int i = 0, n = names.size(); i < n; i++) {
+					String name = names.get(i);
+					Object source = sources.get(i);
+					ZipReader.Entry previousEntry = previous == null ? null : previous.getEntry(name);
+					if (source instanceof byte[])
+						output.add(name, (byte[])source, previous, previousEntry);
+					else
+						output.add(name, (String)source, previous, previousEntry);
+				}
 			} finally {
+				output.close();
+			}
+			if (previous != null) {
+				previous.close();
+				if (DEBUG) debug("scar", "Reused JAR entries: " + output.getReused() + " of " + names.size());
+				// A reproducible JAR is only replaced if it changed, so it keeps its modification time.
+				if (reproducible)
+					copyFileIfChanged(tempFile.getPath(), outputFile);
+				else
+					Files.move(tempFile.toPath(), new File(outputFile).toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			if (previous != null) {
 				try {
-					output.close();
+					previous.close();
 				} catch (Exception ignored) {
 				}
+				tempFile.delete();
 			}
+			span.end();
 		}
+	}
 
-		if (DEBUG) debug("scar", "Creating JAR (" + inputPaths.count() + " entries): " + outputFile);
+	/** Returns a manifest with a Main-Class and a Class-Path containing the JAR and classpath.
+	 * @param sort If true, the classpath is sorted so the manifest does not depend on the order the files were found. */
+	static byte[] manifest (String outputFile, String mainClass, Paths classpath, boolean sort) throws IOException {
+		if (DEBUG) debug("scar", "Generating JAR manifest.");
+		Manifest manifest = new Manifest();
+		Attributes attributes = manifest.getMainAttributes();
+		attributes.putValue(Attributes.Name.MANIFEST_VERSION.toString(), "1.0");
+		if (DEBUG) debug("scar", "Main class: " + mainClass);
+		attributes.putValue(Attributes.Name.MAIN_CLASS.toString(), mainClass);
+		StringBuilder buffer = new StringBuilder(512);
+		buffer.append(fileName(outputFile));
+		buffer.append(" .");
+		List<String> names = classpath.getRelativePaths();
+		if (sort) {
+			names = new ArrayList(names);
+			Collections.sort(names);
+		}
+		for (String name : names) {
+			buffer.append(' ');
+			buffer.append(name);
+		}
+		attributes.putValue(Attributes.Name.CLASS_PATH.toString(), buffer.toString());
+		ByteArrayOutputStream output = new ByteArrayOutputStream(512);
+		manifest.write(output);
+		return output.toByteArray();
+	}
 
-		mkdir(new File(outputFile).getParent());
-		JarOutputStream output = new JarOutputStream(new FileOutputStream(outputFile));
-		output.setLevel(Deflater.BEST_COMPRESSION);
-		try {
-			for (int i = 0, n = fullPaths.size(); i < n; i++) {
-				JarEntry jarEntry = new JarEntry(relativePaths.get(i).replace('\\', '/'));
-				output.putNextEntry(jarEntry);
-				FileInputStream input = new FileInputStream(fullPaths.get(i));
-				try {
-					byte[] buffer = new byte[4096];
-					while (true) {
-						int length = input.read(buffer);
-						if (length == -1) break;
-						output.write(buffer, 0, length);
-					}
-				} finally {
-					try {
-						input.close();
-					} catch (Exception ignored) {
-					}
-				}
-			}
-		} finally {
+	/** Returns the time used for the entries of reproducible JARs: the SOURCE_DATE_EPOCH environment variable if set, otherwise
+	 * 1980-02-01. The time is adjusted for the time zone, so the entries have the same time in every time zone. */
+	static public long reproducibleTime () {
+		long time = 318211200000L;
+		String epoch = System.getenv("SOURCE_DATE_EPOCH");
+		if (epoch != null) {
 			try {
-				output.close();
-			} catch (Exception ignored) {
+				time = Long.parseLong(epoch.trim()) * 1000;
+			} catch (NumberFormatException ex) {
+				if (WARN) warn("scar", "Invalid SOURCE_DATE_EPOCH: " + epoch);
 			}
 		}
+		return time - TimeZone.getDefault().getOffset(time);
 	}
 
 	static public void oneJAR (String inputDir, String outputFile, String mainClass, Paths classpath) throws IOException {
@@ -133,71 +244,82 @@ public class Jar {
 	}
 
 	static public void oneJAR (Paths jars, String outputFile, String mainClass, Paths classpath) throws IOException {
-		if (jars == null) throw new IllegalArgumentException("jars cannot be null.");
-
-		String tempDir = tempDirectory("oneJAR");
-
-		ArrayList<String> processedJARs = new ArrayList();
-		for (String jarFile : jars) {
-			unzip(jarFile, tempDir);
-			processedJARs.add(jarFile);
-		}
+		oneJAR(jars, outputFile, mainClass, classpath, null);
+	}
 
-		if (mainClass != null) new File(tempDir, manifestFileName).delete();
+	/** Combines the JARs into one, without extracting them. If more than one JAR has an entry with the same name, the entry from
+	 * the last JAR is used. Service files are concatenated and signature files are removed, see {@link JarMerger}.
+	 * @param mainClass May be null to use the manifest from the JARs.
+	 * @param classpath May be null if mainClass is null.
+	 * @param policy May be null to use {@link Scar#compression}. */
+	static public void oneJAR (Paths jars, String outputFile, String mainClass, Paths classpath, CompressionPolicy policy)
+		throws IOException {
+		if (jars == null) throw new IllegalArgumentException("jars cannot be null.");
 
-		mkdir(parent(outputFile));
-		jar(outputFile, tempDir, mainClass, classpath);
-		delete(tempDir);
+		JarMerger merger = new JarMerger();
+		for (String jarFile : jars)
+			merger.add(jarFile);
+		merger.setDuplicates(JarMerger.lastWins);
+		if (mainClass != null) merger.setMain(mainClass, classpath);
+		merger.setCompression(policy);
+		merger.merge(outputFile);
 	}
 
 	/** Removes any code signatures on the specified JAR. Removes any signature files in the META-INF directory and removes any
 	 * signature entries from the JAR's manifest.
 	 * @return The path to the JAR file. */
 	static public String unsign (String jarFile) throws IOException {
+		return unsign(jarFile, null);
+	}
+
+	/** @param policy May be null to use {@link Scar#compression}.
+	 * @see #unsign(String) */
+	static public String unsign (String jarFile, CompressionPolicy policy) throws IOException {
 		if (jarFile == null) throw new IllegalArgumentException("jarFile cannot be null.");
 
 		if (DEBUG) debug("scar", "Removing signature from JAR: " + jarFile);
 
 		File tempFile = File.createTempFile("scar", "removejarsig");
-		JarOutputStream jarOutput = null;
-		JarInputStream jarInput = null;
+		ZipWriter jarOutput = null;
+		ZipReader jarInput = null;
 		try {
-			jarOutput = new JarOutputStream(new FileOutputStream(tempFile));
-			jarOutput.setLevel(Deflater.BEST_COMPRESSION);
-			jarInput = new JarInputStream(new FileInputStream(jarFile));
-			Manifest manifest = jarInput.getManifest();
-			if (manifest != null) {
+			jarOutput = new ZipWriter(tempFile.getPath(), policy, threads());
+			jarInput = new ZipReader(jarFile);
+			ZipReader.Entry manifestEntry = jarInput.getEntry(manifestName);
+			if (manifestEntry != null) {
+				InputStream input = jarInput.getInputStream(manifestEntry);
+				Manifest manifest;
+				try {
+					manifest = new Manifest(input);
+				} finally {
+					input.close();
+				}
 				// Remove manifest file entries.
 				manifest.getEntries().clear();
-				jarOutput.putNextEntry(new JarEntry(manifestFileName));
-				manifest.write(jarOutput);
+				ByteArrayOutputStream output = new ByteArrayOutputStream(512);
+				manifest.write(output);
+				jarOutput.add(manifestName, output.toByteArray());
 			}
-			byte[] buffer = new byte[4096];
-			while (true) {
-				JarEntry entry = jarInput.getNextJarEntry();
-				if (entry == null) break;
+			// Other entries are copied without being recompressed.
+			for (ZipReader.Entry entry : jarInput.getEntries()) {
+				if (entry == manifestEntry) continue;
 				String name = entry.getName();
 				// Skip signature files.
 				if (name.startsWith("META-INF") && (name.endsWith(".SF") || name.endsWith(".DSA") || name.endsWith(".RSA"))) continue;
-				jarOutput.putNextEntry(new JarEntry(name));
-				while (true) {
-					int length = jarInput.read(buffer);
-					if (length == -1) break;
-					jarOutput.write(buffer, 0, length);
-				}
+				jarOutput.addRaw(name, jarInput, entry);
 			}
-			jarInput.close();
 			jarOutput.close();
+			jarInput.close();
 			copyFile(tempFile.getAbsolutePath(), jarFile);
 		} catch (IOException ex) {
 			throw new IOException("Error unsigning JAR file: " + jarFile, ex);
 		} finally {
 			try {
-				if (jarInput != null) jarInput.close();
+				if (jarOutput != null) jarOutput.close();
 			} catch (Exception ignored) {
 			}
 			try {
-				if (jarOutput != null) jarOutput.close();
+				if (jarInput != null) jarInput.close();
 			} catch (Exception ignored) {
 			}
 			tempFile.delete();
@@ -308,204 +430,144 @@ public class Jar {
 		return jarFile;
 	}
 
+	/** Returns the names of the entries, using "/", in the order they are in the JAR. */
 	static public ArrayList<String> entryNames (String jar) throws IOException {
-		JarFile jarFile = new JarFile(jar);
-		ArrayList<String> names = new ArrayList();
-		for (Enumeration<JarEntry> entries = jarFile.entries(); entries.hasMoreElements();)
-			names.add(entries.nextElement().getName().replace('\\', '/'));
-		jarFile.close();
-		return names;
+		ZipReader reader = new ZipReader(jar);
+		try {
+			List<ZipReader.Entry> entries = reader.getEntries();
+			ArrayList<String> names = new ArrayList(entries.size());
+			for (ZipReader.Entry entry : entries)
+				names.add(entry.getName().replace('\\', '/'));
+			return names;
+		} finally {
+			reader.close();
+		}
 	}
 
 	/** Combines the JARs into one. If both JARs have the same entry, the entry from the first JAR is used. */
 	static public void mergeJars (String firstJar, String secondJar, String outJar) throws IOException {
-		if (DEBUG) debug("scar", "Merging JARs: " + firstJar + " + " + secondJar + " -> " + outJar);
-
-		JarFile firstJarFile = new JarFile(firstJar);
-		JarFile secondJarFile = new JarFile(secondJar);
+		mergeJars(firstJar, secondJar, outJar, null);
+	}
 
-		HashSet<String> names = new HashSet();
-		for (Enumeration<JarEntry> entries = firstJarFile.entries(); entries.hasMoreElements();)
-			names.add(entries.nextElement().getName().replace('\\', '/'));
-		for (Enumeration<JarEntry> entries = secondJarFile.entries(); entries.hasMoreElements();)
-			names.add(entries.nextElement().getName().replace('\\', '/'));
+	/** @param policy May be null to use {@link Scar#compression}.
+	 * @see #mergeJars(String, String, String) */
+	static public void mergeJars (String firstJar, String secondJar, String outJar, CompressionPolicy policy) throws IOException {
+		if (DEBUG) debug("scar", "Merging JARs: " + firstJar + " + " + secondJar + " -> " + outJar);
 
-		mkdir(parent(outJar));
-		JarOutputStream outJarStream = new JarOutputStream(new FileOutputStream(outJar));
-		outJarStream.setLevel(Deflater.BEST_COMPRESSION);
-		for (String name : names) {
-			InputStream input;
-			ZipEntry entry = firstJarFile.getEntry(name);
-			if (entry != null)
-				input = firstJarFile.getInputStream(entry);
-			else {
-				entry = firstJarFile.getEntry(name.replace('/', '\\'));
-				if (entry != null)
-					input = firstJarFile.getInputStream(entry);
-				else {
+		ZipReader firstJarFile = new ZipReader(firstJar);
+		ZipReader secondJarFile = null;
+		try {
+			secondJarFile = new ZipReader(secondJar);
+
+			LinkedHashSet<String> names = new LinkedHashSet();
+			for (ZipReader.Entry entry : firstJarFile.getEntries())
+				names.add(entry.getName().replace('\\', '/'));
+			for (ZipReader.Entry entry : secondJarFile.getEntries())
+				names.add(entry.getName().replace('\\', '/'));
+
+			mkdir(parent(outJar));
+			// Entries are copied without being recompressed.
+			ZipWriter outJarStream = new ZipWriter(outJar, policy, threads());
+			for (String name : names) {
+				ZipReader jarFile = firstJarFile;
+				ZipReader.Entry entry = firstJarFile.getEntry(name);
+				if (entry == null) {
+					jarFile = secondJarFile;
 					entry = secondJarFile.getEntry(name);
-					input = secondJarFile.getInputStream(entry != null ? entry : secondJarFile.getEntry(name.replace('/', '\\')));
 				}
+				outJarStream.addRaw(name, jarFile, entry);
 			}
-			outJarStream.putNextEntry(new JarEntry(name));
-			copyStream(input, outJarStream);
-			outJarStream.closeEntry();
+			outJarStream.close();
+		} finally {
+			firstJarFile.close();
+			if (secondJarFile != null) secondJarFile.close();
 		}
-		firstJarFile.close();
-		secondJarFile.close();
-		outJarStream.close();
 	}
 
 	static public void copyFromJAR (String inJar, String outJar, String... regexs) throws IOException {
-		if (DEBUG) debug("scar", "Copying from JAR: " + inJar + " -> " + outJar + ", " + Arrays.asList(regexs));
+		copyFromJAR(inJar, outJar, (CompressionPolicy)null, regexs);
+	}
 
-		JarFile inJarFile = new JarFile(inJar);
-		mkdir(parent(outJar));
-		JarOutputStream outJarStream = new JarOutputStream(new FileOutputStream(outJar));
-		outJarStream.setLevel(Deflater.BEST_COMPRESSION);
-		for (Enumeration<JarEntry> entries = inJarFile.entries(); entries.hasMoreElements();) {
-			JarEntry inEntry = entries.nextElement();
-			String name = inEntry.getName();
-			boolean matches = false;
-			for (String regex : regexs) {
-				if (name.matches(regex)) {
-					matches = true;
-					break;
-				}
-			}
-			if (!matches) continue;
+	/** @param policy May be null to use {@link Scar#compression}. */
+	static public void copyFromJAR (String inJar, String outJar, CompressionPolicy policy, String... regexs) throws IOException {
+		if (DEBUG) debug("scar", "Copying from JAR: " + inJar + " -> " + outJar + ", " + Arrays.asList(regexs));
 
-			JarEntry outEntry = new JarEntry(name);
-			outJarStream.putNextEntry(outEntry);
-			copyStream(inJarFile.getInputStream(inEntry), outJarStream);
-			outJarStream.closeEntry();
-		}
-		outJarStream.close();
-		inJarFile.close();
+		new JarTransformer().keep(regexs).setCompression(policy).transform(inJar, outJar);
 	}
 
 	static public void removeFromJAR (String inJar, String outJar, String... regexs) throws IOException {
+		removeFromJAR(inJar, outJar, (CompressionPolicy)null, regexs);
+	}
+
+	/** @param policy May be null to use {@link Scar#compression}. */
+	static public void removeFromJAR (String inJar, String outJar, CompressionPolicy policy, String... regexs) throws IOException {
 		if (DEBUG) debug("scar", "Removing from JAR: " + inJar + " -> " + outJar + ", " + Arrays.asList(regexs));
 
-		JarFile inJarFile = new JarFile(inJar);
-		mkdir(parent(outJar));
-		JarOutputStream outJarStream = new JarOutputStream(new FileOutputStream(outJar));
-		outJarStream.setLevel(Deflater.BEST_COMPRESSION);
-		outer:
-		for (Enumeration<JarEntry> entries = inJarFile.entries(); entries.hasMoreElements();) {
-			JarEntry inEntry = entries.nextElement();
-			String name = inEntry.getName();
-			for (String regex : regexs)
-				if (name.matches(regex)) continue outer;
-
-			JarEntry outEntry = new JarEntry(name);
-			outEntry.setTime(1370273339); // Reset time.
-			outJarStream.putNextEntry(outEntry);
-			copyStream(inJarFile.getInputStream(inEntry), outJarStream);
-			outJarStream.closeEntry();
-		}
-		outJarStream.close();
-		inJarFile.close();
+		new JarTransformer().remove(regexs).setTime(1370273339).setCompression(policy).transform(inJar, outJar); // Reset time.
 	}
 
 	static public void addToJAR (String inJar, String outJar, String addName, byte[] bytes, boolean overwrite) throws IOException {
+		addToJAR(inJar, outJar, addName, bytes, overwrite, null);
+	}
+
+	/** @param policy May be null to use {@link Scar#compression}. */
+	static public void addToJAR (String inJar, String outJar, String addName, byte[] bytes, boolean overwrite,
+		CompressionPolicy policy) throws IOException {
 		if (DEBUG) debug("scar", "Adding to JAR: " + inJar + " -> " + outJar + ", " + addName);
 
-		JarFile inJarFile = new JarFile(inJar);
-		mkdir(parent(outJar));
-		JarOutputStream outJarStream = new JarOutputStream(new FileOutputStream(outJar));
-		outJarStream.setLevel(Deflater.BEST_COMPRESSION);
-		ArrayList<String> names = new ArrayList();
-		for (Enumeration<JarEntry> entries = inJarFile.entries(); entries.hasMoreElements();)
-			names.add(entries.nextElement().getName());
-
-		addName = addName.replace('\\', '/');
-		boolean exists = names.contains(addName) || names.contains(addName.replace('/', '\\'));
-		if (!overwrite && exists) throw new RuntimeException("JAR already has entry: " + addName);
-		if (!exists) {
-			names.add(addName);
-			Collections.sort(names);
-		}
+		ZipReader inJarFile = new ZipReader(inJar);
+		try {
+			mkdir(parent(outJar));
+			ArrayList<String> names = new ArrayList();
+			for (ZipReader.Entry entry : inJarFile.getEntries())
+				names.add(entry.getName());
+
+			addName = addName.replace('\\', '/');
+			boolean exists = inJarFile.getEntry(addName) != null;
+			if (!overwrite && exists) throw new RuntimeException("JAR already has entry: " + addName);
+			if (!exists) {
+				names.add(addName);
+				Collections.sort(names);
+			}
 
-		if (names.remove("META-INF/MANIFEST.MF") || names.remove("META-INF\\MANIFEST.MF")) names.add(0, "META-INF/MANIFEST.MF");
+			if (names.remove("META-INF/MANIFEST.MF") || names.remove("META-INF\\MANIFEST.MF")) names.add(0, "META-INF/MANIFEST.MF");
 
-		for (String name : names) {
-			outJarStream.putNextEntry(new JarEntry(name.replace('\\', '/')));
-			if (name.replace('\\', '/').equals(addName))
-				outJarStream.write(bytes);
-			else
-				copyStream(inJarFile.getInputStream(inJarFile.getEntry(name)), outJarStream);
-			outJarStream.closeEntry();
+			// Only the added entry is compressed, the others are copied as they are.
+			ZipWriter outJarStream = new ZipWriter(outJar, policy, threads());
+			for (String name : names) {
+				if (name.replace('\\', '/').equals(addName))
+					outJarStream.add(addName, bytes);
+				else {
+					ZipReader.Entry entry = inJarFile.getEntry(name);
+					outJarStream.addRaw(name.replace('\\', '/'), inJarFile, entry);
+				}
+			}
+			outJarStream.close();
+		} finally {
+			inJarFile.close();
 		}
-		outJarStream.close();
-		inJarFile.close();
 	}
 
 	static public void setEntryTime (String inJar, String outJar, long time) throws IOException {
+		setEntryTime(inJar, outJar, time, null);
+	}
+
+	/** @param policy May be null to use {@link Scar#compression}. */
+	static public void setEntryTime (String inJar, String outJar, long time, CompressionPolicy policy) throws IOException {
 		if (DEBUG) debug("scar", "Setting entry to for JAR: " + inJar + " -> " + outJar + ", " + time);
 
-		JarFile inJarFile = new JarFile(inJar);
-		mkdir(parent(outJar));
-		JarOutputStream outJarStream = new JarOutputStream(new FileOutputStream(outJar));
-		outJarStream.setLevel(Deflater.BEST_COMPRESSION);
-		for (Enumeration<JarEntry> entries = inJarFile.entries(); entries.hasMoreElements();) {
-			JarEntry inEntry = entries.nextElement();
-			String name = inEntry.getName();
-			JarEntry outEntry = new JarEntry(name);
-			outEntry.setTime(time);
-			outJarStream.putNextEntry(outEntry);
-			copyStream(inJarFile.getInputStream(inEntry), outJarStream);
-			outJarStream.closeEntry();
-		}
-		outJarStream.close();
-		inJarFile.close();
+		new JarTransformer().setTime(time).setCompression(policy).transform(inJar, outJar);
 	}
 
 	static public void setClassVersions (String inJar, String outJar, int max, int min) throws IOException {
-		if (DEBUG) debug("scar", "Setting class versions for JAR: " + inJar + " -> " + outJar + ", " + max + "." + min);
-
-		JarFile inJarFile = new JarFile(inJar);
-		mkdir(parent(outJar));
-		JarOutputStream outJarStream = new JarOutputStream(new FileOutputStream(outJar));
-		outJarStream.setLevel(Deflater.BEST_COMPRESSION);
-		for (Enumeration<JarEntry> entries = inJarFile.entries(); entries.hasMoreElements();) {
-			String name = entries.nextElement().getName();
-			outJarStream.putNextEntry(new JarEntry(name));
-			InputStream input = inJarFile.getInputStream(inJarFile.getEntry(name));
-			if (name.endsWith(".class")) input = new ClassVersionStream(input, name, max, min);
-			copyStream(input, outJarStream);
-			outJarStream.closeEntry();
-		}
-		outJarStream.close();
-		inJarFile.close();
+		setClassVersions(inJar, outJar, max, min, null);
 	}
 
-	static class ClassVersionStream extends FilterInputStream {
-		private boolean first = true;
-		private final int max, min;
-		private String name;
-
-		public ClassVersionStream (InputStream in, String name, int max, int min) {
-			super(in);
-			this.name = name;
-			this.max = max;
-			this.min = min;
-		}
+	/** @param policy May be null to use {@link Scar#compression}. */
+	static public void setClassVersions (String inJar, String outJar, int max, int min, CompressionPolicy policy)
+		throws IOException {
+		if (DEBUG) debug("scar", "Setting class versions for JAR: " + inJar + " -> " + outJar + ", " + max + "." + min);
 
-		public int read (byte[] b, int off, int len) throws IOException {
-			int count = super.read(b, off, len);
-			if (first) {
-				first = false;
-				if (count < 8) throw new RuntimeException("Too few bytes: " + count);
-				int oldMin = (b[off + 4] << 8) | b[off + 5];
-				int oldMax = ((b[off + 6] & 0xff) << 8) | (b[off + 7] & 0xff);
-				b[off + 4] = (byte)(min >> 8);
-				b[off + 5] = (byte)min;
-				b[off + 6] = (byte)(max >> 8);
-				b[off + 7] = (byte)max;
-				if (DEBUG && (oldMax != max || oldMin != min)) debug(oldMax + "." + oldMin + " to " + max + "." + min + ": " + name);
-			}
-			return count;
-		}
+		new JarTransformer().setClassVersions(max, min).setCompression(policy).transform(inJar, outJar);
 	}
 }
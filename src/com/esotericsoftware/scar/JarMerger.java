@@ -0,0 +1,240 @@
+
+package com.esotericsoftware.scar;
+
+import static com.esotericsoftware.minlog.Log.*;
+import static com.esotericsoftware.scar.Scar.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.esotericsoftware.wildcard.Paths;
+
+/** Combines JARs into a single JAR without extracting them. The central directory of each JAR is read to decide which entry is
+ * used for each name, then the entries are copied to the output without being inflated or compressed again.
+ * <p>
+ * When more than one JAR has an entry with the same name and different contents, the {@link Duplicates} decides which is used.
+ * Service provider files in "META-INF/services" are concatenated instead. Signature files are removed, since the signatures are
+ * not valid for the combined JAR. */
+public class JarMerger {
+	static private final String manifestName = "META-INF/MANIFEST.MF";
+	static private final String servicesPrefix = "META-INF/services/";
+
+	/** The entry from the JAR that was added first is used. */
+	static public final Duplicates firstWins = new Duplicates() {
+		public boolean replace (String name, String usedJar, String jar) {
+			return false;
+		}
+
+		public String toString () {
+			return "first";
+		}
+	};
+
+	/** The entry from the JAR that was added last is used, as if the JARs were extracted in order to the same directory. */
+	static public final Duplicates lastWins = new Duplicates() {
+		public boolean replace (String name, String usedJar, String jar) {
+			return true;
+		}
+
+		public String toString () {
+			return "last";
+		}
+	};
+
+	/** A {@link RuntimeException} is thrown, except for manifests where the first manifest is used. */
+	static public final Duplicates fail = new Duplicates() {
+		public boolean replace (String name, String usedJar, String jar) {
+			throw new RuntimeException("Duplicate JAR entry: " + name + " (" + usedJar + ", " + jar + ")");
+		}
+
+		public String toString () {
+			return "fail";
+		}
+	};
+
+	private final ArrayList<String> jars = new ArrayList();
+	private Duplicates duplicates = firstWins;
+	private String mainClass;
+	private Paths classpath;
+	private CompressionPolicy policy;
+
+	/** Adds a JAR to combine. Entries are written in the order of the JARs they first appear in. */
+	public void add (String jar) {
+		if (jar == null) throw new IllegalArgumentException("jar cannot be null.");
+		jars.add(jar);
+	}
+
+	/** Sets how entries with the same name in more than one JAR are handled. Default is {@link #firstWins}. */
+	public void setDuplicates (Duplicates duplicates) {
+		if (duplicates == null) throw new IllegalArgumentException("duplicates cannot be null.");
+		this.duplicates = duplicates;
+	}
+
+	/** Replaces the manifests of the JARs with a manifest generated with a Main-Class and a Class-Path containing the JAR and
+	 * classpath.
+	 * @param mainClass May be null to use the manifest from the JARs. */
+	public void setMain (String mainClass, Paths classpath) {
+		if (mainClass != null && classpath == null) throw new IllegalArgumentException("classpath cannot be null.");
+		this.mainClass = mainClass;
+		this.classpath = classpath;
+	}
+
+	/** Sets the policy for the entries that are compressed, which are the manifest and service files. Other entries keep their
+	 * compression.
+	 * @param policy May be null to use {@link Scar#compression}. */
+	public void setCompression (CompressionPolicy policy) {
+		this.policy = policy;
+	}
+
+	/** Writes the combined JAR. */
+	public void merge (String outputFile) throws IOException {
+		if (outputFile == null) throw new IllegalArgumentException("outputFile cannot be null.");
+
+		if (DEBUG) debug("scar", "Merging JARs (" + jars.size() + " JARs, " + duplicates + " wins): " + outputFile);
+
+		Tracer.Span span = Tracer.span("file", "merge", outputFile);
+		ArrayList<ZipReader> readers = new ArrayList();
+		try {
+			LinkedHashMap<String, Source> sources = new LinkedHashMap();
+			int replaced = 0, signatures = 0;
+			for (String jar : jars) {
+				ZipReader reader = new ZipReader(jar);
+				readers.add(reader);
+				for (ZipReader.Entry entry : reader.getEntries()) {
+					String name = entry.getName().replace('\\', '/');
+					if (signature(name)) {
+						signatures++;
+						continue;
+					}
+					if (mainClass != null && name.equals(manifestName)) continue;
+					Source source = sources.get(name);
+					if (name.startsWith(servicesPrefix) && !entry.isDirectory()) {
+						if (source == null) sources.put(name, source = new Source(reader, entry));
+						source.append(reader.readBytes(entry));
+						continue;
+					}
+					if (source == null) {
+						sources.put(name, new Source(reader, entry));
+						continue;
+					}
+					if (entry.isDirectory() || source.same(entry)) continue;
+					// Most JARs have a manifest, so manifests are not a failure.
+					if (duplicates == fail && name.equals(manifestName)) continue;
+					if (duplicates.replace(name, source.reader.getFile(), jar)) {
+						// The entry keeps its position from the first JAR.
+						sources.put(name, new Source(reader, entry));
+						replaced++;
+					}
+				}
+			}
+			if (DEBUG && replaced > 0) debug("scar", "Replaced duplicate JAR entries: " + replaced);
+			if (DEBUG && signatures > 0) debug("scar", "Removed signature files: " + signatures);
+
+			if (sources.isEmpty()) {
+				if (WARN) warn("scar", "No files to JAR.");
+				return;
+			}
+
+			mkdir(parent(outputFile));
+			ZipWriter output = new ZipWriter(outputFile, policy, threads());
+			try {
+				// The manifest is written first.
+				if (mainClass != null)
+					output.add(manifestName, Jar.manifest(outputFile, mainClass, classpath, false));
+				else {
+					Source manifest = sources.remove(manifestName);
+					if (manifest != null) manifest.write(manifestName, output);
+				}
+				for (Map.Entry<String, Source> entry : sources.entrySet())
+					entry.getValue().write(entry.getKey(), output);
+			} finally {
+				output.close();
+			}
+		} finally {
+			for (ZipReader reader : readers) {
+				try {
+					reader.close();
+				} catch (Exception ignored) {
+				}
+			}
+			span.end();
+		}
+	}
+
+	/** Returns true if the entry is a signature file, which is not valid after the JARs are combined. */
+	static private boolean signature (String name) {
+		if (!name.startsWith("META-INF/") || name.indexOf('/', 9) != -1) return false;
+		String upper = name.toUpperCase();
+		return upper.endsWith(".SF") || upper.endsWith(".DSA") || upper.endsWith(".RSA") || upper.endsWith(".EC")
+			|| upper.startsWith("META-INF/SIG-");
+	}
+
+	/** Returns the duplicates for the name: "first", "last", "fail", or "project" for {@link #projectWins(String)}. */
+	static public Duplicates get (String name, String projectJar) {
+		if (name == null) throw new IllegalArgumentException("name cannot be null.");
+		if (name.equals("first")) return firstWins;
+		if (name.equals("last")) return lastWins;
+		if (name.equals("fail")) return fail;
+		if (name.equals("project")) return projectWins(projectJar);
+		throw new IllegalArgumentException("Unknown duplicates: " + name);
+	}
+
+	/** Returns duplicates where the entry from the project's JAR is always used. Otherwise the entry from the JAR that was added
+	 * last is used. */
+	static public Duplicates projectWins (final String projectJar) {
+		if (projectJar == null) throw new IllegalArgumentException("projectJar cannot be null.");
+		return new Duplicates() {
+			public boolean replace (String name, String usedJar, String jar) {
+				return !usedJar.equals(projectJar);
+			}
+
+			public String toString () {
+				return "project";
+			}
+		};
+	}
+
+	/** Decides which entry is used when more than one JAR has an entry with the same name and different contents. */
+	static public interface Duplicates {
+		/** @param usedJar The JAR whose entry is currently used.
+		 * @param jar The JAR with another entry of the same name.
+		 * @return true to use the entry from jar instead. */
+		public boolean replace (String name, String usedJar, String jar);
+	}
+
+	/** The entry used for a name, or the concatenated contents of a service file. */
+	static private class Source {
+		final ZipReader reader;
+		final ZipReader.Entry entry;
+		ByteArrayOutputStream services;
+		boolean newline = true;
+
+		Source (ZipReader reader, ZipReader.Entry entry) {
+			this.reader = reader;
+			this.entry = entry;
+		}
+
+		boolean same (ZipReader.Entry other) {
+			return entry.getCrc() == other.getCrc() && entry.getSize() == other.getSize();
+		}
+
+		void append (byte[] bytes) {
+			if (services == null)
+				services = new ByteArrayOutputStream(Math.max(32, bytes.length));
+			else if (!newline) //
+				services.write('\n');
+			services.write(bytes, 0, bytes.length);
+			if (bytes.length > 0) newline = bytes[bytes.length - 1] == '\n';
+		}
+
+		void write (String name, ZipWriter output) throws IOException {
+			if (services != null)
+				output.add(name, services.toByteArray());
+			else
+				output.addRaw(name, reader, entry);
+		}
+	}
+}
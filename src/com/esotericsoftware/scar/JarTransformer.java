@@ -0,0 +1,299 @@
+
+package com.esotericsoftware.scar;
+
+import static com.esotericsoftware.minlog.Log.*;
+import static com.esotericsoftware.scar.Scar.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/** Applies many changes to a JAR in a single pass, writing one new JAR. Entries can be removed, renamed, rewritten, and added, and
+ * the time of all entries can be set. Name changes are applied to each entry in the order they were added, so a filter added
+ * after a rename sees the new name. Entries whose contents are not rewritten are copied without being recompressed. Entries that
+ * are rewritten are read, rewritten, and compressed concurrently by the {@link ZipWriter} threads.
+ * <p>
+ * For example, to remove the sources, set the class versions, and reset the entry times:
+ *
+ * <pre>
+ * new JarTransformer().remove(".*\\.java").setClassVersions(52, 0).setTime(0).transform(jar, jar);
+ * </pre> */
+public class JarTransformer {
+	static private final String manifestName = "META-INF/MANIFEST.MF";
+
+	private final ArrayList<Object> steps = new ArrayList();
+	private final LinkedHashMap<String, byte[]> added = new LinkedHashMap();
+	private final HashSet<String> overwrite = new HashSet();
+	private long time = -1;
+	private CompressionPolicy policy;
+
+	/** Keeps only the entries for which the filter returns true. */
+	public JarTransformer filter (Filter filter) {
+		if (filter == null) throw new IllegalArgumentException("filter cannot be null.");
+		steps.add(filter);
+		return this;
+	}
+
+	/** Keeps only the entries whose names match one of the regular expressions. */
+	public JarTransformer keep (String... regexs) {
+		final Pattern[] patterns = patterns(regexs);
+		return filter(new Filter() {
+			public boolean keep (String name) {
+				return matches(patterns, name);
+			}
+		});
+	}
+
+	/** Removes the entries whose names match one of the regular expressions. */
+	public JarTransformer remove (String... regexs) {
+		final Pattern[] patterns = patterns(regexs);
+		return filter(new Filter() {
+			public boolean keep (String name) {
+				return !matches(patterns, name);
+			}
+		});
+	}
+
+	/** Renames the entries. */
+	public JarTransformer rename (Renamer renamer) {
+		if (renamer == null) throw new IllegalArgumentException("renamer cannot be null.");
+		steps.add(renamer);
+		return this;
+	}
+
+	/** Renames the entries whose names match the regular expression, using the replacement, which can refer to groups, eg "$1". */
+	public JarTransformer rename (String regex, final String replacement) {
+		if (replacement == null) throw new IllegalArgumentException("replacement cannot be null.");
+		final Pattern pattern = pattern(regex);
+		return rename(new Renamer() {
+			public String rename (String name) {
+				Matcher matcher = pattern.matcher(name);
+				return matcher.matches() ? matcher.replaceAll(replacement) : name;
+			}
+		});
+	}
+
+	/** Rewrites the contents of the files whose names match the regular expression. The rewriter may be called concurrently.
+	 * @param regex Matched against the name the entry has at this step. */
+	public JarTransformer rewrite (String regex, Rewriter rewriter) {
+		if (rewriter == null) throw new IllegalArgumentException("rewriter cannot be null.");
+		steps.add(new Rewrite(pattern(regex), rewriter));
+		return this;
+	}
+
+	/** Sets the version of the class files, see {@link Jar#setClassVersions(String, String, int, int)}. */
+	public JarTransformer setClassVersions (final int max, final int min) {
+		return rewrite(".*\\.class", new Rewriter() {
+			public byte[] rewrite (String name, byte[] bytes) {
+				setVersion(bytes, name, max, min);
+				return bytes;
+			}
+		});
+	}
+
+	/** Sets the version in the header of a class file. */
+	static private void setVersion (byte[] b, String name, int max, int min) {
+		if (b.length < 8) throw new RuntimeException("Too few bytes: " + b.length);
+		int oldMin = (b[4] << 8) | b[5];
+		int oldMax = ((b[6] & 0xff) << 8) | (b[7] & 0xff);
+		b[4] = (byte)(min >> 8);
+		b[5] = (byte)min;
+		b[6] = (byte)(max >> 8);
+		b[7] = (byte)max;
+		if (DEBUG && (oldMax != max || oldMin != min)) debug(oldMax + "." + oldMin + " to " + max + "." + min + ": " + name);
+	}
+
+	/** Adds an entry after the entries of the JAR, or if overwrite is true, replaces an entry with the same name where it is.
+	 * Added entries are not renamed or rewritten.
+	 * @param overwrite If false and the JAR has an entry with the name, a RuntimeException is thrown. */
+	public JarTransformer add (String name, byte[] bytes, boolean overwrite) {
+		if (name == null) throw new IllegalArgumentException("name cannot be null.");
+		if (bytes == null) throw new IllegalArgumentException("bytes cannot be null.");
+		name = name.replace('\\', '/');
+		added.put(name, bytes);
+		if (overwrite)
+			this.overwrite.add(name);
+		else
+			this.overwrite.remove(name);
+		return this;
+	}
+
+	/** Sets the modification time of all entries, eg so the JAR is the same when built again. By default, the current time is
+	 * used. */
+	public JarTransformer setTime (long time) {
+		this.time = time;
+		return this;
+	}
+
+	/** Sets the policy for the entries that are rewritten or added. Other entries keep their compression.
+	 * @param policy May be null to use {@link Scar#compression}. */
+	public JarTransformer setCompression (CompressionPolicy policy) {
+		this.policy = policy;
+		return this;
+	}
+
+	/** Writes a new JAR with the changes applied to the entries of the input JAR.
+	 * @param outJar May be the same as inJar. */
+	public void transform (String inJar, String outJar) throws IOException {
+		if (inJar == null) throw new IllegalArgumentException("inJar cannot be null.");
+		if (outJar == null) throw new IllegalArgumentException("outJar cannot be null.");
+
+		if (DEBUG) debug("scar", "Transforming JAR: " + inJar + " -> " + outJar);
+
+		boolean sameFile = new File(inJar).getCanonicalFile().equals(new File(outJar).getCanonicalFile());
+		File tempFile = sameFile ? File.createTempFile("scar", "transform") : null;
+		Tracer.Span span = Tracer.span("file", "transform", outJar);
+		final ZipReader reader = new ZipReader(inJar);
+		try {
+			// Decide the name and rewrites for each entry.
+			LinkedHashMap<String, Object> entries = new LinkedHashMap();
+			outer:
+			for (ZipReader.Entry entry : reader.getEntries()) {
+				String name = entry.getName().replace('\\', '/');
+				ArrayList<Rewrite> rewrites = null;
+				for (Object step : steps) {
+					if (step instanceof Filter) {
+						if (!((Filter)step).keep(name)) continue outer;
+					} else if (step instanceof Renamer) {
+						name = ((Renamer)step).rename(name);
+						if (name == null) continue outer;
+					} else if (!entry.isDirectory()) {
+						Rewrite rewrite = (Rewrite)step;
+						if (!rewrite.pattern.matcher(name).matches()) continue;
+						if (rewrites == null) rewrites = new ArrayList();
+						rewrites.add(new Rewrite(rewrite, name));
+					}
+				}
+				if (entries.containsKey(name)) {
+					if (DEBUG) debug("scar", "Skipping duplicate JAR entry: " + name);
+					continue;
+				}
+				entries.put(name, rewrites == null ? entry : new Rewritten(entry, rewrites));
+			}
+			for (Map.Entry<String, byte[]> entry : added.entrySet()) {
+				String name = entry.getKey();
+				if (entries.containsKey(name) && !overwrite.contains(name))
+					throw new RuntimeException("JAR already has entry: " + name);
+				entries.put(name, entry.getValue());
+			}
+
+			String file = sameFile ? tempFile.getPath() : outJar;
+			if (!sameFile) mkdir(parent(outJar));
+			ZipWriter output = new ZipWriter(file, policy, threads());
+			try {
+				if (time != -1) output.setTime(time);
+				// The manifest is written first.
+				Object manifest = entries.remove(manifestName);
+				if (manifest != null) write(output, reader, manifestName, manifest);
+				for (Map.Entry<String, Object> entry : entries.entrySet())
+					write(output, reader, entry.getKey(), entry.getValue());
+			} finally {
+				output.close();
+			}
+			reader.close();
+			if (sameFile) copyFile(tempFile.getPath(), outJar);
+		} finally {
+			try {
+				reader.close();
+			} catch (Exception ignored) {
+			}
+			if (tempFile != null) tempFile.delete();
+			span.end();
+		}
+	}
+
+	private void write (ZipWriter output, final ZipReader reader, String name, Object source) throws IOException {
+		if (source instanceof byte[])
+			output.add(name, (byte[])source);
+		else if (source instanceof ZipReader.Entry)
+			output.addRaw(name, reader, (ZipReader.Entry)source);
+		else {
+			final Rewritten rewritten = (Rewritten)source;
+			output.add(name, rewritten.entry.getSize(), new Callable<byte[]>() {
+				public byte[] call () throws IOException {
+					byte[] bytes = reader.readBytes(rewritten.entry);
+					for (Rewrite rewrite : rewritten.rewrites) {
+						bytes = rewrite.rewriter.rewrite(rewrite.name, bytes);
+						if (bytes == null) throw new RuntimeException("Rewriter returned null: " + rewrite.name);
+					}
+					return bytes;
+				}
+			});
+		}
+	}
+
+	static private Pattern[] patterns (String... regexs) {
+		if (regexs == null) throw new IllegalArgumentException("regexs cannot be null.");
+		Pattern[] patterns = new Pattern[regexs.length];
+		for (int i = 0, n = regexs.length; i < n; i++)
+			patterns[i] = pattern(regexs[i]);
+		return patterns;
+	}
+
+	static private Pattern pattern (String regex) {
+		if (regex == null) throw new IllegalArgumentException("regex cannot be null.");
+		return Pattern.compile(regex);
+	}
+
+	static private boolean matches (Pattern[] patterns, String name) {
+		for (Pattern pattern : patterns)
+			if (pattern.matcher(name).matches()) return true;
+		return false;
+	}
+
+	/** Decides which entries are kept. */
+	static public interface Filter {
+		/** @param name The name of the entry, using "/". */
+		public boolean keep (String name);
+	}
+
+	/** Changes the names of entries. */
+	static public interface Renamer {
+		/** @param name The name of the entry, using "/".
+		 * @return The new name, the same name, or null to remove the entry. */
+		public String rename (String name);
+	}
+
+	/** Changes the contents of files. */
+	static public interface Rewriter {
+		/** @param bytes The contents of the file, which may be modified and returned.
+		 * @return The new contents. */
+		public byte[] rewrite (String name, byte[] bytes) throws IOException;
+	}
+
+	static private class Rewrite {
+		final Pattern pattern;
+		final Rewriter rewriter;
+		/** The name of the entry when the rewriter is applied. */
+		final String name;
+
+		Rewrite (Pattern pattern, Rewriter rewriter) {
+			this.pattern = pattern;
+			this.rewriter = rewriter;
+			name = null;
+		}
+
+		Rewrite (Rewrite rewrite, String name) {
+			pattern = rewrite.pattern;
+			rewriter = rewrite.rewriter;
+			this.name = name;
+		}
+	}
+
+	/** An entry of the JAR and the rewrites applied to its contents. */
+	static private class Rewritten {
+		final ZipReader.Entry entry;
+		final ArrayList<Rewrite> rewrites;
+
+		Rewritten (ZipReader.Entry entry, ArrayList<Rewrite> rewrites) {
+			this.entry = entry;
+			this.rewrites = rewrites;
+		}
+	}
+}
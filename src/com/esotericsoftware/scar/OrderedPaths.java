@@ -0,0 +1,72 @@
+
+package com.esotericsoftware.scar;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import com.esotericsoftware.wildcard.Paths;
+
+/** Paths that are returned in the order they were added, rather than in hash order. This is used for classpaths, where the order
+ * decides which of two classes with the same name is used. Paths added by globbing come after the others, in hash order. Paths
+ * added to another Paths from these paths lose their order. */
+public class OrderedPaths extends Paths {
+	private final LinkedHashSet<String> order = new LinkedHashSet();
+
+	public Paths add (String dir, String name) {
+		super.add(dir, name);
+		order.add(new File(dir, name).getPath());
+		return this;
+	}
+
+	public Paths addFile (String file) {
+		super.addFile(file);
+		File fileObject = new File(file);
+		order.add(new File(fileObject.getParent(), fileObject.getName()).getPath());
+		return this;
+	}
+
+	public void add (Paths paths) {
+		super.add(paths);
+		order.addAll(paths.getPaths());
+	}
+
+	public List<File> getFiles () {
+		return sort(super.getFiles(), super.getFiles());
+	}
+
+	public List<String> getRelativePaths () {
+		return sort(super.getFiles(), super.getRelativePaths());
+	}
+
+	public Iterator<String> iterator () {
+		return getPaths().iterator();
+	}
+
+	public Iterator<File> fileIterator () {
+		return getFiles().iterator();
+	}
+
+	/** Returns the values in the order their files were added.
+	 * @param files The files in hash order.
+	 * @param values A value for each file. */
+	private <T> List<T> sort (List<File> files, List<T> values) {
+		HashMap<String, Integer> indexes = new HashMap();
+		for (int i = 0, n = files.size(); i < n; i++)
+			indexes.put(files.get(i).getPath(), i);
+		ArrayList<T> sorted = new ArrayList(values.size());
+		boolean[] used = new boolean[values.size()];
+		for (String path : order) {
+			Integer index = indexes.get(path);
+			if (index == null || used[index]) continue;
+			used[index] = true;
+			sorted.add(values.get(index));
+		}
+		for (int i = 0, n = values.size(); i < n; i++)
+			if (!used[i]) sorted.add(values.get(i));
+		return sorted;
+	}
+}
@@ -7,9 +7,14 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -22,10 +27,14 @@ import com.esotericsoftware.yamlbeans.tokenizer.Tokenizer.TokenizerException;
 /** Generic data structure that contains information needed to perform tasks. */
 public class Project {
 	static private Pattern formatPattern = Pattern.compile("([^\\$]*)\\$([^\\$]+)\\$([^\\$]*)");
+	static private final ConcurrentHashMap<String, Template> templates = new ConcurrentHashMap();
+	/** Added to the keys of a result that contains a list or map, which can be changed without {@link #invalidate(Object)}. */
+	static private final Object uncached = new Object();
 
 	String dir;
-	private HashMap data = new HashMap();
+	HashMap data = new HashMap();
 	private String document;
+	private final HashMap<String, Resolved> formatted = new HashMap(), paths = new HashMap();
 
 	/** Creates an empty project, without any default properties. */
 	public Project () {
@@ -40,10 +49,36 @@ public class Project {
 			replace(new Project(mergePath));
 	}
 
+	/** Creates a project with the data, directory, and document of the specified project. Lists and maps are copied, so changes
+	 * to either project do not affect the other. */
+	public Project (Project project) {
+		if (project == null) throw new IllegalArgumentException("project cannot be null.");
+		data = (HashMap)copy(project.data);
+		dir = project.dir;
+		document = project.document;
+	}
+
+	static private Object copy (Object value) {
+		if (value instanceof List) {
+			ArrayList list = new ArrayList(((List)value).size());
+			for (Object item : (List)value)
+				list.add(copy(item));
+			return list;
+		}
+		if (value instanceof Map) {
+			Map map = value instanceof LinkedHashMap ? new LinkedHashMap() : new HashMap();
+			for (Object entry : ((Map)value).entrySet())
+				map.put(((Map.Entry)entry).getKey(), copy(((Map.Entry)entry).getValue()));
+			return map;
+		}
+		return value;
+	}
+
 	/** Clears the data in this project and replaces it with the contents of the specified YAML file. The project directory is set
 	 * to the directory containing the YAML file.
 	 * @param path Path to a YAML project file, or a directory containing a "project.yaml" file. */
 	public void load (String path) throws IOException {
+		invalidate();
 		File file = new File(path);
 		if (!file.exists() && !path.endsWith(".yaml")) {
 			path += ".yaml";
@@ -107,6 +142,7 @@ public class Project {
 		data.putAll(project.data);
 		document = project.document;
 		dir = project.dir;
+		invalidate();
 	}
 
 	public boolean has (Object key) {
@@ -231,33 +267,45 @@ public class Project {
 		return map;
 	}
 
-	/** Uses the strings under the specified key to {@link Paths#glob(String, String...) glob} paths. */
+	/** Uses the strings under the specified key to {@link Paths#glob(String, String...) glob} paths. Results are cached by
+	 * {@link Scar#globs}. */
 	public Paths getPaths (String key) {
 		Paths paths = new Paths();
 		Object object = data.get(key);
 		if (object instanceof List) {
-			for (Object dirPattern : (List)object) {
-				String dir = path((String)dirPattern);
-				File file = new File(dir);
-				if (!file.isDirectory() && file.exists())
-					paths.addFile(dir);
-				else
-					paths.glob(dir);
-			}
-		} else if (object instanceof String) {
-			String dirPattern = path((String)object);
-			File file = new File(dirPattern);
-			if (!file.isDirectory() && file.exists())
-				paths.addFile(dirPattern);
-			else
-				paths.glob(dirPattern);
-		}
+			for (Object dirPattern : (List)object)
+				addPaths(paths, path((String)dirPattern));
+		} else if (object instanceof String) //
+			addPaths(paths, path((String)object));
 		return paths;
 	}
 
-	/** Returns the specified path if it is an absolute path, otherwise returns the path relative to this project's directory. */
+	static private void addPaths (Paths paths, String dirPattern) {
+		File file = new File(dirPattern);
+		if (!file.isDirectory() && file.exists())
+			paths.addFile(dirPattern);
+		else if (Scar.globs != null)
+			Scar.globs.glob(paths, dirPattern);
+		else
+			GlobWalker.glob(paths, dirPattern);
+	}
+
+	/** Returns the specified path if it is an absolute path, otherwise returns the path relative to this project's directory. The
+	 * result is cached until a property it references changes, unless it references a list or map. */
 	public String path (String path) {
-		path = format(path);
+		synchronized (formatted) {
+			Resolved resolved = paths.get(path);
+			if (resolved == null) {
+				HashSet keys = new HashSet();
+				resolved = new Resolved(path(path, keys), keys);
+				if (!keys.contains(uncached)) paths.put(path, resolved);
+			}
+			return resolved.value;
+		}
+	}
+
+	private String path (String path, HashSet keys) {
+		path = format(path, keys);
 		if (dir == null) {
 			path = path.replace("//", "/");
 			path = path.replace("\\/", "/");
@@ -267,7 +315,7 @@ public class Project {
 		int pipeIndex = path.indexOf('|');
 		if (pipeIndex > -1) {
 			// Handle wildcard search patterns.
-			path = path(path.substring(0, pipeIndex)) + path.substring(pipeIndex);
+			path = path(path.substring(0, pipeIndex), keys) + path.substring(pipeIndex);
 		} else {
 			if (!new File(path).isAbsolute()) path = dir + "/" + path;
 		}
@@ -280,10 +328,14 @@ public class Project {
 	public void set (Object key, Object object) {
 		if (key == null) throw new IllegalArgumentException("key cannot be null.");
 		data.put(key, object);
+		invalidate(key);
 	}
 
 	public void setDirectory (String dir) {
 		this.dir = Scar.canonical(dir);
+		synchronized (formatted) {
+			paths.clear();
+		}
 	}
 
 	public String getDirectory () {
@@ -300,6 +352,7 @@ public class Project {
 
 	public void remove (Object key) {
 		data.remove(key);
+		invalidate(key);
 	}
 
 	/** Removes an item from a list or map. If the data under the specified key is a list, the entry equal to the specified value
@@ -307,39 +360,111 @@ public class Project {
 	public void remove (Object key, Object value) {
 		Object object = data.get(key);
 		if (object instanceof Map)
-			((Map)object).remove(object);
+			((Map)object).remove(value);
 		else if (object instanceof List)
-			((List)object).remove(object);
+			((List)object).remove(value);
 		else
 			data.remove(key);
+		invalidate(key);
 	}
 
-	/** Replaces property names surrounded by curly braces with the value from this project. */
+	/** Replaces property names surrounded by dollar signs with the value from this project. The text is parsed once and the
+	 * result is cached until a property it references changes. A result that contains a list or map is not cached, since the
+	 * collections returned by {@link #getList(Object, String...)} and {@link #getMap(Object, String...)} can be changed. */
 	public String format (String text) {
-		Matcher matcher = formatPattern.matcher(text);
+		synchronized (formatted) {
+			Resolved resolved = formatted.get(text);
+			if (resolved == null) {
+				HashSet keys = new HashSet();
+				resolved = new Resolved(format(text, keys), keys);
+				if (!keys.contains(uncached)) formatted.put(text, resolved);
+			}
+			return resolved.value;
+		}
+	}
+
+	/** @param keys Collects the names of the properties the result depends on. */
+	private String format (String text, HashSet keys) {
+		Template template = templates.get(text);
+		if (template == null) {
+			if (templates.size() > 4096) templates.clear();
+			template = new Template(text);
+			templates.put(text, template);
+		}
+		String[] names = template.names;
+		if (names.length == 0) return text;
 		StringBuilder buffer = new StringBuilder(128);
-		while (matcher.find()) {
-			buffer.append(matcher.group(1));
-			String name = matcher.group(2);
+		for (int i = 0, n = names.length; i < n; i++) {
+			buffer.append(template.before[i]);
+			String name = names[i];
+			keys.add(name);
 			Object value = data.get(name);
 			if (value instanceof String)
-				buffer.append(format((String)value));
-			else if (value != null)
+				buffer.append(format((String)value, keys));
+			else if (value != null) {
+				if (value instanceof Collection || value instanceof Map) keys.add(uncached);
 				buffer.append(value);
+			}
 			else
 				buffer.append(name);
-			buffer.append(matcher.group(3));
+			buffer.append(template.after[i]);
 		}
 		if (buffer.length() == 0) return text;
 		return buffer.toString();
 	}
 
+	/** Discards cached {@link #format(String)} and {@link #path(String)} results that depend on the property. */
+	private void invalidate (Object key) {
+		synchronized (formatted) {
+			for (Iterator<Resolved> iter = formatted.values().iterator(); iter.hasNext();)
+				if (iter.next().keys.contains(key)) iter.remove();
+			for (Iterator<Resolved> iter = paths.values().iterator(); iter.hasNext();)
+				if (iter.next().keys.contains(key)) iter.remove();
+		}
+	}
+
+	private void invalidate () {
+		synchronized (formatted) {
+			formatted.clear();
+			paths.clear();
+		}
+	}
+
 	public void clear () {
 		data.clear();
+		invalidate();
 	}
 
 	public String toString () {
 		if (has("name")) return get("name");
 		return data.toString();
 	}
+
+	/** The text between the properties of a format string, and the property names. */
+	static private class Template {
+		final String[] before, names, after;
+
+		Template (String text) {
+			ArrayList<String> before = new ArrayList(), names = new ArrayList(), after = new ArrayList();
+			Matcher matcher = formatPattern.matcher(text);
+			while (matcher.find()) {
+				before.add(matcher.group(1));
+				names.add(matcher.group(2));
+				after.add(matcher.group(3));
+			}
+			this.before = before.toArray(new String[before.size()]);
+			this.names = names.toArray(new String[names.size()]);
+			this.after = after.toArray(new String[after.size()]);
+		}
+	}
+
+	static private class Resolved {
+		final String value;
+		final HashSet keys;
+
+		Resolved (String value, HashSet keys) {
+			this.value = value;
+			this.keys = keys;
+		}
+	}
 }
@@ -0,0 +1,192 @@
+
+package com.esotericsoftware.scar;
+
+import static com.esotericsoftware.minlog.Log.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** The projects reachable from a root project through the "dependencies" property. Each project is loaded once, even if it is
+ * reached through multiple paths. Projects are identified by name, the same as {@link Build#builtProjects}. */
+public class ProjectGraph {
+	private final LinkedHashMap<String, Node> nodes = new LinkedHashMap();
+	private final Node root;
+
+	public ProjectGraph (Project root) throws IOException {
+		if (root == null) throw new IllegalArgumentException("root cannot be null.");
+		this.root = add(root, new ArrayList());
+
+		// Nodes are in dependency order, so dependents are visited before their dependencies.
+		ArrayList<Node> reversed = new ArrayList(nodes.values());
+		for (int i = reversed.size() - 1; i >= 0; i--) {
+			Node node = reversed.get(i);
+			long priority = 0;
+			for (Node dependent : node.dependents)
+				priority = Math.max(priority, dependent.priority);
+			node.priority = priority + node.weight;
+		}
+	}
+
+	private Node add (Project project, ArrayList<String> path) throws IOException {
+		String name = project.toString();
+		Node node = nodes.get(name);
+		if (node != null) return node;
+		if (path.contains(name)) {
+			StringBuilder buffer = new StringBuilder();
+			for (String pathName : path.subList(path.indexOf(name), path.size()))
+				buffer.append(pathName).append(" -> ");
+			throw new RuntimeException("Circular project dependency: " + buffer + name);
+		}
+
+		node = new Node(project);
+		path.add(name);
+		for (String dependency : project.getList("dependencies")) {
+			Node dependencyNode = add(Build.project(project.path(dependency)), path);
+			node.dependencies.add(dependencyNode);
+			dependencyNode.dependents.add(node);
+		}
+		path.remove(path.size() - 1);
+		nodes.put(name, node);
+		return node;
+	}
+
+	public Node getRoot () {
+		return root;
+	}
+
+	/** Returns the node for the project with the specified name, or null. */
+	public Node getNode (String name) {
+		return nodes.get(name);
+	}
+
+	/** Returns all nodes, each after all of its dependencies. */
+	public List<Node> getNodes () {
+		return new ArrayList(nodes.values());
+	}
+
+	/** Runs the task for each of the specified nodes using up to the specified number of threads. A node's task is not run until
+	 * the tasks for all of its dependencies in the collection are complete. When more nodes are ready than there are threads, the
+	 * nodes on the longest path to the root, weighted by the number of source files, are run first. After a task fails no new
+	 * tasks are started and, once running tasks are complete, the first failure is thrown. */
+	public void execute (Collection<Node> nodes, int threads, final Task task) throws IOException {
+		if (nodes == null) throw new IllegalArgumentException("nodes cannot be null.");
+		if (task == null) throw new IllegalArgumentException("task cannot be null.");
+		if (nodes.isEmpty()) return;
+		threads = Math.max(1, Math.min(threads, nodes.size()));
+
+		if (DEBUG) debug("scar", "Executing " + nodes.size() + " projects with " + threads + " threads.");
+
+		HashSet<Node> pending = new HashSet(nodes);
+		HashMap<Node, Integer> waiting = new HashMap();
+		PriorityQueue<Node> ready = new PriorityQueue(nodes.size(), new Comparator<Node>() {
+			public int compare (Node a, Node b) {
+				return a.priority > b.priority ? -1 : (a.priority < b.priority ? 1 : 0);
+			}
+		});
+		for (Node node : pending) {
+			int count = 0;
+			for (Node dependency : node.dependencies)
+				if (pending.contains(dependency)) count++;
+			waiting.put(node, count);
+			if (count == 0) ready.add(node);
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread (Runnable runnable) {
+				Thread thread = new Thread(runnable, "build-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		ExecutorCompletionService<Node> completion = new ExecutorCompletionService(executor);
+		Throwable failure = null;
+		int running = 0, completed = 0;
+		try {
+			while (true) {
+				while (failure == null && running < threads && !ready.isEmpty()) {
+					final Node node = ready.poll();
+					completion.submit(new Callable<Node>() {
+						public Node call () throws IOException {
+							task.run(node.project);
+							return node;
+						}
+					});
+					running++;
+				}
+				if (running == 0) break;
+				Future<Node> future = completion.take();
+				running--;
+				try {
+					Node node = future.get();
+					completed++;
+					for (Node dependent : node.dependents) {
+						if (!pending.contains(dependent)) continue;
+						int count = waiting.get(dependent) - 1;
+						waiting.put(dependent, count);
+						if (count == 0) ready.add(dependent);
+					}
+				} catch (ExecutionException ex) {
+					if (failure == null) {
+						failure = ex.getCause();
+						if (running > 0 && DEBUG) debug("scar", "Waiting for " + running + " running projects to complete.");
+					}
+				}
+			}
+		} catch (InterruptedException ex) {
+			throw new RuntimeException("Interrupted while executing projects.", ex);
+		} finally {
+			executor.shutdownNow();
+		}
+		if (failure instanceof IOException) throw (IOException)failure;
+		if (failure instanceof RuntimeException) throw (RuntimeException)failure;
+		if (failure instanceof Error) throw (Error)failure;
+		if (failure != null) throw new RuntimeException(failure);
+		if (completed != pending.size()) throw new RuntimeException("Unable to execute all projects: " + pending);
+	}
+
+	static public class Node {
+		public final Project project;
+		final ArrayList<Node> dependencies = new ArrayList();
+		final ArrayList<Node> dependents = new ArrayList();
+		final long weight;
+		long priority;
+
+		Node (Project project) {
+			this.project = project;
+			weight = 1 + project.getPaths("source").count();
+		}
+
+		public List<Node> getDependencies () {
+			return dependencies;
+		}
+
+		public List<Node> getDependents () {
+			return dependents;
+		}
+
+		public String toString () {
+			return project.toString();
+		}
+	}
+
+	static public interface Task {
+		public void run (Project project) throws IOException;
+	}
+}
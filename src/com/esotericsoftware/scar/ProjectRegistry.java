@@ -0,0 +1,371 @@
+
+package com.esotericsoftware.scar;
+
+import static com.esotericsoftware.minlog.Log.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Keeps loaded projects by canonical path, along with the modification time of each file that contributed to them. A project is
+ * only returned while none of those files have been modified, created, or deleted. Projects are copied when they are stored and
+ * returned, so changes made by the caller do not affect the registry.
+ * <p>
+ * If a snapshot directory is given, each project is also written there in a compact binary form, so a later process can use it
+ * without parsing any YAML as long as the files it was loaded from have not changed. A project is not written if one of its files
+ * was modified so recently that it may change again without its time changing. Snapshots not used for 30 days are deleted.
+ * <p>
+ * {@link Build#projects} is used by {@link Build#project(String)}. */
+public class ProjectRegistry {
+	static private final int snapshotVersion = 1;
+	/** File times can be this coarse, so a file modified this recently may change again without its time changing. */
+	static private final long racy = 2000;
+	static private final long maxAge = 30 * 24 * 60 * 60 * 1000L;
+
+	private final String dir;
+	private final HashMap<String, Entry> entries = new HashMap();
+	private boolean pruned;
+
+	/** Creates a registry that keeps projects only in memory. */
+	public ProjectRegistry () {
+		this(null);
+	}
+
+	/** @param dir May be null. If not null, the directory where project snapshots are stored. */
+	public ProjectRegistry (String dir) {
+		this.dir = dir;
+	}
+
+	/** @return May be null. */
+	public String getDir () {
+		return dir;
+	}
+
+	/** Returns a copy of the project for the path, or null if it is not in the registry or a file it was loaded from changed. */
+	public Project get (String path) {
+		if (path == null) throw new IllegalArgumentException("path cannot be null.");
+		String key = Scar.canonical(path);
+		Entry entry;
+		synchronized (entries) {
+			entry = entries.get(key);
+		}
+		if (entry == null) {
+			entry = readSnapshot(key);
+			if (entry == null) return null;
+			synchronized (entries) {
+				entries.put(key, entry);
+			}
+		}
+		if (changed(entry.files, entry.modified)) {
+			synchronized (entries) {
+				if (entries.get(key) == entry) entries.remove(key);
+			}
+			return null;
+		}
+		return new Project(entry.project);
+	}
+
+	/** Stores a copy of the project for the path.
+	 * @param files The files the project was loaded from, including files that were looked for but do not exist. */
+	public void put (String path, Project project, Collection<String> files) {
+		if (path == null) throw new IllegalArgumentException("path cannot be null.");
+		if (project == null) throw new IllegalArgumentException("project cannot be null.");
+		if (files == null) throw new IllegalArgumentException("files cannot be null.");
+		String key = Scar.canonical(path);
+		Entry entry = new Entry();
+		entry.project = new Project(project);
+		entry.files = files.toArray(new String[files.size()]);
+		entry.modified = new long[entry.files.length];
+		for (int i = 0, n = entry.files.length; i < n; i++)
+			entry.modified[i] = new File(entry.files[i]).lastModified();
+		synchronized (entries) {
+			entries.put(key, entry);
+		}
+		writeSnapshot(key, entry);
+	}
+
+	/** Returns a copy of the project for the path as stored by {@link #putResolved(String, Project, Collection)}, or null if it
+	 * was not stored, or a file it was loaded from or that its resolution depends on changed. */
+	public Project getResolved (String path) {
+		if (path == null) throw new IllegalArgumentException("path cannot be null.");
+		String key = Scar.canonical(path);
+		Entry entry;
+		synchronized (entries) {
+			entry = entries.get(key);
+		}
+		if (entry == null || entry.resolved == null) return null;
+		if (changed(entry.files, entry.modified) || changed(entry.resolvedFiles, entry.resolvedModified)) {
+			synchronized (entries) {
+				if (entries.get(key) == entry) entries.remove(key);
+			}
+			return null;
+		}
+		return new Project(entry.resolved);
+	}
+
+	/** Stores a copy of the project for the path after information from other projects and files was used to complete it, such
+	 * as removing dependencies. The resolved project is kept only in memory and is discarded when the project is stored again
+	 * with {@link #put(String, Project, Collection)}. It is not stored if one of the files was modified very recently.
+	 * @param files The files and directories the resolution depends on, besides the files the project was loaded from. */
+	public void putResolved (String path, Project project, Collection<String> files) {
+		if (path == null) throw new IllegalArgumentException("path cannot be null.");
+		if (project == null) throw new IllegalArgumentException("project cannot be null.");
+		if (files == null) throw new IllegalArgumentException("files cannot be null.");
+		String[] resolvedFiles = files.toArray(new String[files.size()]);
+		long[] resolvedModified = new long[resolvedFiles.length];
+		for (int i = 0, n = resolvedFiles.length; i < n; i++)
+			resolvedModified[i] = new File(resolvedFiles[i]).lastModified();
+		if (isRacy(resolvedModified)) return;
+		Project resolved = new Project(project);
+		synchronized (entries) {
+			Entry entry = entries.get(Scar.canonical(path));
+			if (entry == null) return;
+			entry.resolved = resolved;
+			entry.resolvedFiles = resolvedFiles;
+			entry.resolvedModified = resolvedModified;
+		}
+	}
+
+	/** Returns true if a time is so recent that the file may change again without its time changing. */
+	static private boolean isRacy (long[] modified) {
+		long time = System.currentTimeMillis() - racy;
+		for (long value : modified)
+			if (value > time) return true;
+		return false;
+	}
+
+	static private boolean changed (String[] files, long[] modified) {
+		for (int i = 0, n = files.length; i < n; i++) {
+			if (new File(files[i]).lastModified() != modified[i]) {
+				if (DEBUG) debug("scar", "Project changed: " + files[i]);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** Returns the files the project for the path was loaded from, or null if it is not in the registry. */
+	public String[] getFiles (String path) {
+		if (path == null) throw new IllegalArgumentException("path cannot be null.");
+		synchronized (entries) {
+			Entry entry = entries.get(Scar.canonical(path));
+			return entry == null ? null : entry.files;
+		}
+	}
+
+	/** Removes all projects, so they are loaded again from disk. Snapshots are not deleted, they are still used if they are
+	 * current. */
+	public void clear () {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	private File snapshotFile (String key) throws IOException {
+		return new File(dir, BuildCache.hex(BuildCache.digest().digest(key.getBytes("UTF-8"))));
+	}
+
+	/** @return null if there is no snapshot directory or the snapshot does not exist or could not be read. */
+	private Entry readSnapshot (String key) {
+		if (dir == null) return null;
+		File file = null;
+		DataInputStream input = null;
+		try {
+			file = snapshotFile(key);
+			if (!file.exists()) return null;
+			input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (input.readInt() != snapshotVersion || !readString(input).equals(key)) return null;
+			Entry entry = new Entry();
+			int count = input.readInt();
+			entry.files = new String[count];
+			entry.modified = new long[count];
+			for (int i = 0; i < count; i++) {
+				entry.files[i] = readString(input);
+				entry.modified[i] = input.readLong();
+			}
+			Project project = new Project();
+			project.dir = (String)readValue(input);
+			project.setDocument((String)readValue(input));
+			project.data = (HashMap)readValue(input);
+			entry.project = project;
+			// The time shows when the snapshot was last used, see prune().
+			long now = System.currentTimeMillis();
+			if (now - file.lastModified() > 24 * 60 * 60 * 1000) file.setLastModified(now);
+			if (TRACE) trace("scar", "Read project snapshot: " + key);
+			return entry;
+		} catch (Exception ex) {
+			if (DEBUG) debug("scar", "Unable to read project snapshot: " + file, ex);
+			return null;
+		} finally {
+			try {
+				if (input != null) input.close();
+			} catch (Exception ignored) {
+			}
+		}
+	}
+
+	private void writeSnapshot (String key, Entry entry) {
+		if (dir == null) return;
+		if (isRacy(entry.modified)) {
+			if (TRACE) trace("scar", "Project files modified too recently for a snapshot: " + key);
+			return;
+		}
+		if (!pruned) {
+			pruned = true;
+			prune();
+		}
+		File file = null, tempFile = null;
+		try {
+			file = snapshotFile(key);
+			Scar.mkdir(dir);
+			tempFile = File.createTempFile(file.getName(), ".tmp", new File(dir));
+			DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+			try {
+				output.writeInt(snapshotVersion);
+				writeString(output, key);
+				output.writeInt(entry.files.length);
+				for (int i = 0, n = entry.files.length; i < n; i++) {
+					writeString(output, entry.files[i]);
+					output.writeLong(entry.modified[i]);
+				}
+				writeValue(output, entry.project.dir);
+				writeValue(output, entry.project.getDocument());
+				writeValue(output, entry.project.data);
+			} finally {
+				output.close();
+			}
+			try {
+				Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException ex) {
+				Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException ex) {
+			if (DEBUG) debug("scar", "Unable to write project snapshot: " + file, ex);
+		} finally {
+			if (tempFile != null) tempFile.delete();
+		}
+	}
+
+	/** Deletes the snapshots that have not been used for 30 days, such as for projects that were moved or deleted. */
+	public void prune () {
+		if (dir == null) return;
+		File[] files = new File(dir).listFiles();
+		if (files == null) return;
+		long now = System.currentTimeMillis();
+		for (File file : files) {
+			// Temporary files are only deleted when old, since another process may be writing them.
+			long age = now - file.lastModified();
+			if (age > maxAge || (file.getName().endsWith(".tmp") && age > 60 * 60 * 1000)) {
+				if (file.delete() && TRACE) trace("scar", "Deleted project snapshot: " + file.getName());
+			}
+		}
+	}
+
+	static private void writeValue (DataOutputStream output, Object value) throws IOException {
+		if (value == null)
+			output.writeByte('N');
+		else if (value instanceof String) {
+			output.writeByte('S');
+			writeString(output, (String)value);
+		} else if (value instanceof Integer) {
+			output.writeByte('I');
+			output.writeInt((Integer)value);
+		} else if (value instanceof Long) {
+			output.writeByte('J');
+			output.writeLong((Long)value);
+		} else if (value instanceof Float) {
+			output.writeByte('F');
+			output.writeFloat((Float)value);
+		} else if (value instanceof Double) {
+			output.writeByte('D');
+			output.writeDouble((Double)value);
+		} else if (value instanceof Boolean) {
+			output.writeByte('Z');
+			output.writeBoolean((Boolean)value);
+		} else if (value instanceof List) {
+			output.writeByte('L');
+			output.writeInt(((List)value).size());
+			for (Object item : (List)value)
+				writeValue(output, item);
+		} else if (value instanceof Map) {
+			output.writeByte('M');
+			output.writeInt(((Map)value).size());
+			for (Object mapEntry : ((Map)value).entrySet()) {
+				writeValue(output, ((Map.Entry)mapEntry).getKey());
+				writeValue(output, ((Map.Entry)mapEntry).getValue());
+			}
+		} else
+			throw new IOException("Unable to write project value of type: " + value.getClass().getName());
+	}
+
+	static private Object readValue (DataInputStream input) throws IOException {
+		int type = input.readByte();
+		switch (type) {
+		case 'N':
+			return null;
+		case 'S':
+			return readString(input);
+		case 'I':
+			return input.readInt();
+		case 'J':
+			return input.readLong();
+		case 'F':
+			return input.readFloat();
+		case 'D':
+			return input.readDouble();
+		case 'Z':
+			return input.readBoolean();
+		case 'L': {
+			int count = input.readInt();
+			ArrayList list = new ArrayList(count);
+			for (int i = 0; i < count; i++)
+				list.add(readValue(input));
+			return list;
+		}
+		case 'M': {
+			int count = input.readInt();
+			LinkedHashMap map = new LinkedHashMap();
+			for (int i = 0; i < count; i++)
+				map.put(readValue(input), readValue(input));
+			return map;
+		}
+		}
+		throw new IOException("Unknown project value type: " + type);
+	}
+
+	static void writeString (DataOutputStream output, String value) throws IOException {
+		byte[] bytes = value.getBytes("UTF-8");
+		output.writeInt(bytes.length);
+		output.write(bytes);
+	}
+
+	static String readString (DataInputStream input) throws IOException {
+		byte[] bytes = new byte[input.readInt()];
+		input.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	static private class Entry {
+		Project project;
+		String[] files;
+		long[] modified;
+		/** May be null. */
+		Project resolved;
+		String[] resolvedFiles;
+		long[] resolvedModified;
+	}
+}
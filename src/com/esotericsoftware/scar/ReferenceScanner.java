@@ -0,0 +1,80 @@
+
+package com.esotericsoftware.scar;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.Elements;
+import javax.tools.JavaCompiler;
+
+import com.esotericsoftware.scar.Scar.CompileListener;
+import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.tree.IdentifierTree;
+import com.sun.source.tree.ImportTree;
+import com.sun.source.tree.MemberSelectTree;
+import com.sun.source.util.JavacTask;
+import com.sun.source.util.TaskEvent;
+import com.sun.source.util.TaskListener;
+import com.sun.source.util.TreePath;
+import com.sun.source.util.TreePathScanner;
+import com.sun.source.util.Trees;
+
+/** Collects the binary names of the top level classes referenced by identifiers and member selects. This is kept out of
+ * {@link Scar} so the JDK compiler tree API is only needed to compile with a {@link CompileListener}. */
+class ReferenceScanner extends TreePathScanner<Object, Set<String>> {
+	private final Trees trees;
+	private final Elements elements;
+
+	public ReferenceScanner (Trees trees, Elements elements) {
+		this.trees = trees;
+		this.elements = elements;
+	}
+
+	public Object visitIdentifier (IdentifierTree node, Set<String> references) {
+		reference(references);
+		return super.visitIdentifier(node, references);
+	}
+
+	public Object visitMemberSelect (MemberSelectTree node, Set<String> references) {
+		reference(references);
+		return super.visitMemberSelect(node, references);
+	}
+
+	private void reference (Set<String> references) {
+		Element element = trees.getElement(getCurrentPath());
+		TypeElement topLevel = null;
+		for (; element != null; element = element.getEnclosingElement()) {
+			ElementKind kind = element.getKind();
+			if (kind == ElementKind.PACKAGE) break;
+			if (kind.isClass() || kind.isInterface()) topLevel = (TypeElement)element;
+		}
+		if (topLevel != null) references.add(elements.getBinaryName(topLevel).toString());
+	}
+
+	/** Notifies the listener of the classes referenced by each source file the task analyzes. Does nothing if the task is not a
+	 * javac task. */
+	static void listen (JavaCompiler.CompilationTask task, final CompileListener listener) {
+		if (!(task instanceof JavacTask)) return;
+		final Trees trees = Trees.instance((JavacTask)task);
+		final ReferenceScanner scanner = new ReferenceScanner(trees, ((JavacTask)task).getElements());
+		((JavacTask)task).addTaskListener(new TaskListener() {
+			public void started (TaskEvent event) {
+			}
+
+			public void finished (TaskEvent event) {
+				if (event.getKind() != TaskEvent.Kind.ANALYZE || event.getTypeElement() == null) return;
+				TreePath path = trees.getPath(event.getTypeElement());
+				if (path == null) return;
+				HashSet<String> references = new HashSet();
+				scanner.scan(path, references);
+				CompilationUnitTree unit = event.getCompilationUnit();
+				for (ImportTree importTree : unit.getImports())
+					scanner.scan(new TreePath(new TreePath(unit), importTree), references);
+				listener.references(Scar.sourceFile(event.getSourceFile()), references);
+			}
+		});
+	}
+}
@@ -29,26 +29,34 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 
 import javax.tools.Diagnostic;
 import javax.tools.DiagnosticCollector;
 import javax.tools.FileObject;
 import javax.tools.ForwardingJavaFileManager;
 import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
 import javax.tools.JavaFileObject;
 import javax.tools.SimpleJavaFileObject;
 import javax.tools.StandardJavaFileManager;
-import javax.tools.ToolProvider;
 
 import org.apache.commons.net.ftp.FTPClient;
 
@@ -82,6 +90,20 @@ public class Scar {
 	 * the command line. */
 	static public Arguments args = new Arguments();
 
+	/** The compiler and file managers used by {@link #compile(Paths, Paths, String, String)} and
+	 * {@link #executeCode(String, HashMap, Project)}. Keeping them between compilations avoids reinitializing javac for every
+	 * project in a build. */
+	static public final CompileService compileService = new CompileService();
+
+	/** The glob results used by {@link Project#getPaths(String)}, so patterns are only matched again after a directory they cover
+	 * changes. May be null to always glob. */
+	static public GlobCache globs = new GlobCache();
+
+	static private final HashMap<String, FileJournal> journals = new HashMap();
+
+	/** The compression used for ZIP and JAR files when none is specified. */
+	static public CompressionPolicy compression = CompressionPolicy.release;
+
 	/** The Java installation directory. */
 	static public final String JAVA_HOME = System.getProperty("java.home");
 
@@ -92,7 +114,7 @@ public class Scar {
 	static public final boolean isWindows = System.getProperty("os.name").toLowerCase().contains("windows");
 
 	static {
-		Paths.setDefaultGlobExcludes("**/.svn/**");
+		Paths.setDefaultGlobExcludes(GlobWalker.defaultExcludes);
 	}
 
 	/** Returns the full path for the specified file name in the current working directory, the {@link #SCAR_HOME}, and the bin
@@ -118,6 +140,40 @@ public class Scar {
 		return foundFile;
 	}
 
+	/** Sleeps the current thread, recording the time spent as a {@link Tracer} span. */
+	static public void sleep (long millis) {
+		Tracer.Span span = Tracer.span("sleep", "sleep", null);
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException ignored) {
+		} finally {
+			span.end();
+		}
+	}
+
+	/** Returns the number of threads to use for tasks that run in parallel. The value comes from the "threads" command line
+	 * argument, if it exists, otherwise it is the number of available processors. */
+	static public int threads () {
+		String threads = args.get("threads");
+		if (threads != null) return Math.max(1, Integer.parseInt(threads));
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	/** Returns the journal stored in the specified file, loading it the first time it is requested. The same journal is returned
+	 * for the same file, so concurrent builds record to one journal. */
+	static public FileJournal journal (String file) {
+		if (file == null) throw new IllegalArgumentException("file cannot be null.");
+		String key = canonical(file);
+		synchronized (journals) {
+			FileJournal journal = journals.get(key);
+			if (journal == null) {
+				journal = new FileJournal(key);
+				journals.put(key, journal);
+			}
+			return journal;
+		}
+	}
+
 	/** Encodes the specified file with GZIP. The resulting filename is the filename plus ".gz". The file is deleted after
 	 * encoding.
 	 * @return The path to the encoded file. */
@@ -179,61 +235,164 @@ public class Scar {
 		return file;
 	}
 
-	/** Encodes the specified files with ZIP.
+	/** Encodes the specified files with ZIP, using the {@link #compression}.
 	 * @return The path to the encoded file. */
 	static public String zip (Paths paths, String zipFile) throws IOException {
+		return zip(paths, zipFile, null);
+	}
+
+	/** Encodes the specified files with ZIP. No file is written if there are no files.
+	 * @param policy May be null to use the {@link #compression}.
+	 * @return The path to the encoded file. */
+	static public String zip (Paths paths, String zipFile, CompressionPolicy policy) throws IOException {
 		if (paths == null) throw new IllegalArgumentException("paths cannot be null.");
 		if (zipFile == null) throw new IllegalArgumentException("zipFile cannot be null.");
 
 		if (DEBUG) debug("scar", "Creating ZIP (" + paths.count() + " entries): " + zipFile);
 
-		paths.zip(zipFile);
+		paths = paths.filesOnly();
+		if (paths.isEmpty()) return zipFile;
+		Tracer.Span span = Tracer.span("file", "zip", zipFile);
+		ZipWriter output = new ZipWriter(zipFile, policy, threads());
+		try {
+			output.setJarMagic(false);
+			List<String> files = paths.getPaths(), names = paths.getRelativePaths();
+			for (int i = 0, n = files.size(); i < n; i++)
+				output.add(names.get(i).replace('\\', '/'), files.get(i));
+		} finally {
+			try {
+				output.close();
+			} finally {
+				span.end();
+			}
+		}
 		return zipFile;
 	}
 
 	/** Decodes the specified ZIP file.
 	 * @return The path to the output directory. */
 	static public String unzip (String zipFile, String outputDir) throws IOException {
+		return unzip(zipFile, outputDir, (String[])null);
+	}
+
+	/** Decodes the entries of the specified ZIP file whose names match the glob patterns. The entries are found using the central
+	 * directory, each directory is created once, and the files are inflated and written concurrently using {@link #threads()}
+	 * threads. If the ZIP file has more than one entry with the same name, the last is used.
+	 * @param patterns May be null or empty to decode all entries. Patterns starting with "!" are excludes, see
+	 *           {@link GlobWalker.Matcher}.
+	 * @return The path to the output directory. */
+	static public String unzip (String zipFile, String outputDir, String... patterns) throws IOException {
 		if (zipFile == null) throw new IllegalArgumentException("zipFile cannot be null.");
 		if (outputDir == null) throw new IllegalArgumentException("outputDir cannot be null.");
 
 		if (DEBUG) debug("scar", "ZIP decoding: " + zipFile + " -> " + outputDir);
 
-		ZipInputStream input = new ZipInputStream(new FileInputStream(zipFile));
+		Tracer.Span span = Tracer.span("file", "unzip", zipFile);
+		final ZipReader reader = new ZipReader(zipFile);
 		try {
-			byte[] buffer = new byte[1024 * 10];
-			while (true) {
-				ZipEntry entry = input.getNextEntry();
-				if (entry == null) break;
-				File file = new File(outputDir, entry.getName());
+			GlobWalker.Matcher matcher = patterns == null || patterns.length == 0 ? null : new GlobWalker.Matcher(patterns);
+			LinkedHashMap<String, ZipReader.Entry> files = new LinkedHashMap();
+			LinkedHashSet<String> dirs = new LinkedHashSet();
+			for (ZipReader.Entry entry : reader.getEntries()) {
+				String name = entry.getName().replace('\\', '/');
 				if (entry.isDirectory()) {
-					mkdir(file.getPath());
+					name = name.substring(0, name.length() - 1);
+					if (name.length() > 0 && (matcher == null || matcher.matches(name))) dirs.add(name);
 					continue;
 				}
-				mkdir(file.getParent());
-				FileOutputStream output = new FileOutputStream(file);
+				if (matcher != null && !matcher.matches(name)) continue;
+				files.remove(name);
+				files.put(name, entry);
+				int slash = name.lastIndexOf('/');
+				if (slash != -1) dirs.add(name.substring(0, slash));
+			}
+
+			for (String dir : dirs)
+				mkdir(new File(outputDir, dir).getPath());
+
+			int threads = Math.min(threads(), files.size());
+			if (threads <= 1) {
+				byte[] buffer = new byte[64 * 1024];
+				for (Entry<String, ZipReader.Entry> entry : files.entrySet())
+					unzip(reader, entry.getValue(), new File(outputDir, entry.getKey()), buffer);
+			} else {
+				ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+					final AtomicInteger count = new AtomicInteger();
+
+					public Thread newThread (Runnable runnable) {
+						Thread thread = new Thread(runnable, "unzip-" + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
 				try {
-					while (true) {
-						int length = input.read(buffer);
-						if (length == -1) break;
-						output.write(buffer, 0, length);
+					// Each thread takes the next entry until there are none left.
+					final ZipReader.Entry[] entries = files.values().toArray(new ZipReader.Entry[files.size()]);
+					final String[] names = files.keySet().toArray(new String[files.size()]);
+					final AtomicInteger next = new AtomicInteger();
+					final String dir = outputDir;
+					ArrayList<Future> futures = new ArrayList(threads);
+					for (int i = 0; i < threads; i++) {
+						futures.add(executor.submit(new Callable() {
+							public Object call () throws IOException {
+								byte[] buffer = new byte[64 * 1024];
+								for (int i; (i = next.getAndIncrement()) < entries.length;)
+									unzip(reader, entries[i], new File(dir, names[i]), buffer);
+								return null;
+							}
+						}));
 					}
-				} finally {
-					try {
-						output.close();
-					} catch (Exception ignored) {
+					for (Future future : futures) {
+						try {
+							future.get();
+						} catch (ExecutionException ex) {
+							// Stop the other threads.
+							next.set(entries.length);
+							Throwable cause = ex.getCause();
+							if (cause instanceof IOException) throw (IOException)cause;
+							if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+							throw new RuntimeException(cause);
+						}
 					}
+				} catch (InterruptedException ex) {
+					throw new RuntimeException("Interrupted while decoding ZIP file: " + zipFile, ex);
+				} finally {
+					executor.shutdownNow();
 				}
 			}
+			if (TRACE) trace("scar", "ZIP decoded: " + files.size() + " files, " + dirs.size() + " directories");
 		} finally {
 			try {
-				input.close();
+				reader.close();
 			} catch (Exception ignored) {
 			}
+			span.end();
 		}
 		return outputDir;
 	}
 
+	/** Writes the uncompressed bytes of the entry to the file, whose directory must exist. */
+	static private void unzip (ZipReader reader, ZipReader.Entry entry, File file, byte[] buffer) throws IOException {
+		InputStream input = reader.getInputStream(entry);
+		try {
+			FileOutputStream output = new FileOutputStream(file);
+			try {
+				while (true) {
+					int length = input.read(buffer);
+					if (length == -1) break;
+					output.write(buffer, 0, length);
+				}
+			} finally {
+				output.close();
+			}
+		} finally {
+			try {
+				input.close();
+			} catch (Exception ignored) {
+			}
+		}
+	}
+
 	/** Encodes the specified file with LZMA. The resulting filename is the filename plus ".lzma". The file is deleted after
 	 * encoding.
 	 * @return The path to the encoded file. */
@@ -349,37 +508,42 @@ public class Scar {
 		if (env != null) {
 			builder.environment().putAll(env);
 		}
-		final Process process = builder.start();
 		final StringBuilder outputBuffer = new StringBuilder(512);
-		new Thread("shell") {
-			public void run () {
-				BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-				try {
-					while (true) {
-						String line = reader.readLine();
-						if (line == null) break;
-						if (INFO && (line.length() > 0 || outputBuffer.length() > 0)) info("scar", line);
-						outputBuffer.append(line);
-						outputBuffer.append('\n');
+		Tracer.Span span = Tracer.span("shell", "shell", new File(command[0]).getName());
+		try {
+			final Process process = builder.start();
+			new Thread("shell") {
+				public void run () {
+					BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+					try {
+						while (true) {
+							String line = reader.readLine();
+							if (line == null) break;
+							if (INFO && (line.length() > 0 || outputBuffer.length() > 0)) info("scar", line);
+							outputBuffer.append(line);
+							outputBuffer.append('\n');
+						}
+						reader.close();
+					} catch (Exception ex) {
+						ex.printStackTrace();
 					}
-					reader.close();
-				} catch (Exception ex) {
-					ex.printStackTrace();
 				}
-			}
-		}.start();
+			}.start();
 
-		try {
-			process.waitFor();
-		} catch (InterruptedException ignored) {
-		}
-		if (process.exitValue() != 0) {
-			StringBuilder buffer = new StringBuilder(256);
-			for (String text : command) {
-				buffer.append(text);
-				buffer.append(' ');
+			try {
+				process.waitFor();
+			} catch (InterruptedException ignored) {
+			}
+			if (process.exitValue() != 0) {
+				StringBuilder buffer = new StringBuilder(256);
+				for (String text : command) {
+					buffer.append(text);
+					buffer.append(' ');
+				}
+				throw new RuntimeException("Error executing command: " + buffer);
 			}
-			throw new RuntimeException("Error executing command: " + buffer);
+		} finally {
+			span.end();
 		}
 		return outputBuffer.toString();
 	}
@@ -412,6 +576,7 @@ public class Scar {
 
 		if (TRACE) trace("scar", "Copying file: " + in + " -> " + out);
 
+		Tracer.Span span = Tracer.span("file", "copyFile", in);
 		FileChannel sourceChannel = null;
 		FileChannel destinationChannel = null;
 		try {
@@ -429,10 +594,60 @@ public class Scar {
 				if (destinationChannel != null) destinationChannel.close();
 			} catch (Exception ignored) {
 			}
+			span.end();
 		}
 		return out;
 	}
 
+	/** Copies a file unless the destination exists with the same bytes, so an unchanged destination keeps its modification time.
+	 * @return true if the file was copied. */
+	static public boolean copyFileIfChanged (String in, String out) throws IOException {
+		if (in == null) throw new IllegalArgumentException("in cannot be null.");
+		if (out == null) throw new IllegalArgumentException("out cannot be null.");
+
+		File outFile = new File(out);
+		if (outFile.isFile() && outFile.length() == new File(in).length()) {
+			InputStream input1 = new FileInputStream(in), input2 = null;
+			try {
+				input2 = new FileInputStream(outFile);
+				byte[] buffer1 = new byte[64 * 1024], buffer2 = new byte[buffer1.length];
+				while (true) {
+					int count = input1.read(buffer1);
+					if (count == -1) {
+						if (TRACE) trace("scar", "File unchanged: " + out);
+						return false;
+					}
+					int read = 0;
+					while (read < count) {
+						int length = input2.read(buffer2, read, count - read);
+						if (length == -1) break;
+						read += length;
+					}
+					if (read < count) break;
+					boolean same = true;
+					for (int i = 0; i < count; i++) {
+						if (buffer1[i] != buffer2[i]) {
+							same = false;
+							break;
+						}
+					}
+					if (!same) break;
+				}
+			} finally {
+				try {
+					input1.close();
+				} catch (Exception ignored) {
+				}
+				try {
+					if (input2 != null) input2.close();
+				} catch (Exception ignored) {
+				}
+			}
+		}
+		copyFile(in, out);
+		return true;
+	}
+
 	/** Moves a file, overwriting any existing file at the destination. */
 	static public String moveFile (String in, String out) throws IOException {
 		if (in == null) throw new IllegalArgumentException("in cannot be null.");
@@ -835,10 +1050,43 @@ public class Scar {
 	}
 
 	static public Paths paths (String dir, String... patterns) {
-		return new Paths(dir, patterns);
+		return GlobWalker.glob(dir, patterns);
 	}
 
 	static public void compile (Paths source, Paths classpath, String outputDir, String targetVersion) {
+		compile(source, classpath, outputDir, targetVersion, null);
+	}
+
+	/** Compiles the source files to class files in the output directory.
+	 * @param listener May be null. If not null, it is notified of each class file written and of the classes referenced by each
+	 *           source file. */
+	static public void compile (Paths source, Paths classpath, String outputDir, String targetVersion, CompileListener listener) {
+		if (outputDir == null) throw new IllegalArgumentException("outputDir cannot be null.");
+		compile(source, classpath, outputDir, targetVersion, listener, null, null);
+	}
+
+	/** Compiles the source files to class files in the output directory, using additional javac options.
+	 * @param listener May be null.
+	 * @param options May be null. */
+	static void compile (Paths source, Paths classpath, String outputDir, String targetVersion, CompileListener listener,
+		List<String> options) {
+		compile(source, classpath, outputDir, targetVersion, listener, options, null);
+	}
+
+	/** Compiles the source files, keeping the class files in memory.
+	 * @param outputDir May be null. If not null, the class files are also written to this directory.
+	 * @param listener May be null.
+	 * @return The class files in the order they were written, keyed by their path relative to an output directory using "/",
+	 *         eg "com/example/Outer$Inner.class". */
+	static public LinkedHashMap<String, byte[]> compileToMemory (Paths source, Paths classpath, String outputDir,
+		String targetVersion, CompileListener listener) {
+		LinkedHashMap<String, byte[]> classes = new LinkedHashMap();
+		compile(source, classpath, outputDir, targetVersion, listener, null, classes);
+		return classes;
+	}
+
+	static private void compile (Paths source, Paths classpath, final String outputDir, String targetVersion,
+		final CompileListener listener, List<String> options, final Map<String, byte[]> classes) {
 		if (source.isEmpty()) {
 			if (WARN) warn("scar", "No source files found.");
 			return;
@@ -846,35 +1094,46 @@ public class Scar {
 
 		ArrayList<String> args = new ArrayList();
 		if (TRACE) args.add("-verbose");
-		args.add("-d");
-		args.add(outputDir);
-		args.add("-g:source,lines");
-		args.add("-source");
-		args.add(targetVersion);
-		args.add("-target");
-		args.add(targetVersion);
-		args.add("-encoding");
-		args.add("UTF-8");
+		if (outputDir != null) {
+			args.add("-d");
+			args.add(outputDir);
+		}
+		args.addAll(compileOptions(targetVersion));
+		if (options != null) args.addAll(options);
 // args.addAll(source.getPaths());
 		if (classpath != null && !classpath.isEmpty()) {
 			args.add("-classpath");
 			args.add(isWindows ? classpath.toString(";") : classpath.toString(":"));
 		}
 
-		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
-		if (compiler == null)
-			throw new RuntimeException("No compiler available. Ensure you are running from a 1.6+ JDK, and not a JRE.");
+		JavaCompiler compiler = compileService.getCompiler();
 		DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
-		StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, null);
+		StandardJavaFileManager fileManager = compileService.obtain(classpath);
 		Iterable<? extends JavaFileObject> compilationUnits = fileManager
 			.getJavaFileObjectsFromStrings(source.filesOnly().getPaths());
-		JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, diagnostics, args, null, compilationUnits);
+		JavaFileManager taskFileManager = fileManager;
+		if (listener != null || classes != null) {
+			taskFileManager = new ForwardingJavaFileManager(fileManager) {
+				public JavaFileObject getJavaFileForOutput (Location location, String className, JavaFileObject.Kind kind,
+					FileObject sibling) throws IOException {
+					if (kind != JavaFileObject.Kind.CLASS) return super.getJavaFileForOutput(location, className, kind, sibling);
+					if (listener != null && sibling != null) listener.output(sourceFile(sibling), className);
+					if (classes == null) return super.getJavaFileForOutput(location, className, kind, sibling);
+					return new MemoryClassFile(className, classes, outputDir);
+				}
+			};
+		}
+		JavaCompiler.CompilationTask task = compiler.getTask(null, taskFileManager, diagnostics, args, null, compilationUnits);
+		if (listener != null) ReferenceScanner.listen(task, listener);
 
 // JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
-		boolean s = task.call();
+		boolean s;
+		Tracer.Span span = Tracer.span("compile", "javac", source.count() + " files");
 		try {
-			fileManager.close();
-		} catch (IOException ex) {
+			s = task.call();
+		} finally {
+			compileService.free(fileManager);
+			span.end();
 		}
 
 // if (compiler.run(System.in, System.out, System.err, args.toArray(new String[args.size()])) != 0) {
@@ -912,10 +1171,61 @@ public class Scar {
 			}
 			throw new RuntimeException(b.toString());
 		}
-		try {
-			Thread.sleep(100);
-		} catch (InterruptedException ex) {
+		sleep(100);
+	}
+
+	/** Returns the javac options that affect the class files produced by {@link #compile(Paths, Paths, String, String)}. */
+	static List<String> compileOptions (String targetVersion) {
+		ArrayList<String> options = new ArrayList();
+		options.add("-g:source,lines");
+		options.add("-source");
+		options.add(targetVersion);
+		options.add("-target");
+		options.add(targetVersion);
+		options.add("-encoding");
+		options.add("UTF-8");
+		return options;
+	}
+
+	/** Stores a class file written by javac in a map and optionally in an output directory. */
+	static private class MemoryClassFile extends SimpleJavaFileObject {
+		private final String name;
+		private final Map<String, byte[]> classes;
+		private final String outputDir;
+
+		MemoryClassFile (String className, Map<String, byte[]> classes, String outputDir) {
+			super(URI.create("memory:///" + className.replace('.', '/') + ".class"), JavaFileObject.Kind.CLASS);
+			name = className.replace('.', '/') + ".class";
+			this.classes = classes;
+			this.outputDir = outputDir;
 		}
+
+		public OutputStream openOutputStream () {
+			return new ByteArrayOutputStream(4096) {
+				public void close () throws IOException {
+					byte[] bytes = toByteArray();
+					synchronized (classes) {
+						classes.put(name, bytes);
+					}
+					if (outputDir == null) return;
+					File file = new File(outputDir, name);
+					mkdir(file.getParent());
+					FileOutputStream output = new FileOutputStream(file);
+					try {
+						output.write(bytes);
+					} finally {
+						try {
+							output.close();
+						} catch (Exception ignored) {
+						}
+					}
+				}
+			};
+		}
+	}
+
+	static String sourceFile (FileObject file) {
+		return new File(file.toUri()).getPath();
 	}
 
 	static public void executeCode (String code, HashMap<String, Object> parameters) {
@@ -939,9 +1249,7 @@ public class Scar {
 	 * If a project parameter is not null, non-absolute classpath entries will be relative to the project directory.
 	 * @param parameters These parameters will be available in the scope where the code is executed. */
 	static public void executeCode (String code, HashMap<String, Object> parameters, Project project) {
-		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
-		if (compiler == null)
-			throw new RuntimeException("No compiler available. Ensure you are running from a 1.6+ JDK, and not a JRE.");
+		JavaCompiler compiler = compileService.getCompiler();
 
 		try {
 			// Wrap code in a class.
@@ -998,9 +1306,9 @@ public class Scar {
 
 			// Construct classpath option.
 			List<String> options = new ArrayList<String>();
+			String pathSeparator = System.getProperty("path.separator");
 			{
 				StringBuffer buffer = new StringBuffer(System.getProperty("java.class.path"));
-				String pathSeparator = System.getProperty("path.separator");
 				for (URL url : classpathURLs) {
 					buffer.append(pathSeparator);
 					buffer.append(new File(url.toURI()).getCanonicalPath());
@@ -1023,12 +1331,17 @@ public class Scar {
 				}
 			};
 			DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector();
-			compiler.getTask(null, new ForwardingJavaFileManager(compiler.getStandardFileManager(null, null, null)) {
-				public JavaFileObject getJavaFileForOutput (Location location, String className, JavaFileObject.Kind kind,
-					FileObject sibling) {
-					return javaObject;
-				}
-			}, diagnostics, options, null, Arrays.asList(new JavaFileObject[] {javaObject})).call();
+			StandardJavaFileManager fileManager = compileService.obtain(Arrays.asList(options.get(1).split(pathSeparator)));
+			try {
+				compiler.getTask(null, new ForwardingJavaFileManager(fileManager) {
+					public JavaFileObject getJavaFileForOutput (Location location, String className, JavaFileObject.Kind kind,
+						FileObject sibling) {
+						return javaObject;
+					}
+				}, diagnostics, options, null, Arrays.asList(new JavaFileObject[] {javaObject})).call();
+			} finally {
+				compileService.free(fileManager);
+			}
 
 			boolean error = false;
 			for (Diagnostic diagnostic : diagnostics.getDiagnostics()) {
@@ -1143,6 +1456,7 @@ public class Scar {
 		String server2, int port2, String user2, final String password2, //
 		String dir, Paths paths, final ProgressMonitor monitor, final boolean printProgress) throws IOException {
 
+		Tracer.Span span = Tracer.span("upload", "sftpUpload", server1 + ":" + dir);
 		Session session1 = null, session2 = null, session = null;
 		try {
 			long total = 0;
@@ -1246,6 +1560,7 @@ public class Scar {
 		} finally {
 			if (session2 != null) session2.disconnect();
 			if (session1 != null) session1.disconnect();
+			span.end();
 		}
 	}
 
@@ -1434,6 +1749,17 @@ public class Scar {
 		public void progress (float fileProgress, float totalProgress);
 	}
 
+	/** Receives information about the classes produced by {@link Scar#compile(Paths, Paths, String, String, CompileListener)}. */
+	static public interface CompileListener {
+		/** Called when javac writes a class file for the specified source file.
+		 * @param className The binary name of the class. */
+		public void output (String sourceFile, String className);
+
+		/** Called after a top level class in the specified source file is analyzed.
+		 * @param classNames The binary names of the top level classes referenced by the source file. */
+		public void references (String sourceFile, Set<String> classNames);
+	}
+
 	static public void main (String[] args) throws IOException {
 		Scar.args = new Arguments(args);
 
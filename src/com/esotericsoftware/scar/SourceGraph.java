@@ -0,0 +1,286 @@
+
+package com.esotericsoftware.scar;
+
+import static com.esotericsoftware.minlog.Log.*;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import com.esotericsoftware.scar.Scar.CompileListener;
+import com.esotericsoftware.wildcard.Paths;
+
+/** Stores the classes each source file produced and the classes each source file references, as captured from javac by
+ * {@link Scar#compile(Paths, Paths, String, String, CompileListener)}. This allows only the changed source files and the source
+ * files that depend on them to be recompiled. */
+public class SourceGraph implements CompileListener {
+	final HashMap<String, Unit> units = new HashMap();
+	private String stamp = "";
+
+	/** Returns the classpath stamp the graph was built with. */
+	public String getStamp () {
+		return stamp;
+	}
+
+	public void setStamp (String stamp) {
+		if (stamp == null) throw new IllegalArgumentException("stamp cannot be null.");
+		this.stamp = stamp;
+	}
+
+	public boolean isEmpty () {
+		return units.isEmpty();
+	}
+
+	/** Compares the specified source files to the graph and returns the source files that need to be compiled: those that are new
+	 * or changed, plus every source file that transitively references a class produced by a changed or removed source file. The
+	 * class files for those source files are deleted from the output directory and their entries are removed from the graph. */
+	public Paths stale (Paths source, String outputDir) {
+		if (source == null) throw new IllegalArgumentException("source cannot be null.");
+		if (outputDir == null) throw new IllegalArgumentException("outputDir cannot be null.");
+
+		HashMap<String, String> current = new HashMap();
+		for (String file : source.filesOnly())
+			current.put(key(file), file);
+
+		// Collect new, changed, and removed source files.
+		HashSet<String> dirty = new HashSet();
+		for (Entry<String, String> entry : current.entrySet()) {
+			Unit unit = units.get(entry.getKey());
+			File file = new File(entry.getValue());
+			if (unit == null || unit.lastModified != file.lastModified() || unit.length != file.length()) dirty.add(entry.getKey());
+		}
+		for (String key : units.keySet())
+			if (!current.containsKey(key)) dirty.add(key);
+
+		// Add source files that reference classes from dirty source files, until no more are found.
+		HashSet<String> dirtyClasses = new HashSet();
+		ArrayList<String> queue = new ArrayList(dirty);
+		while (!queue.isEmpty()) {
+			for (String key : queue) {
+				Unit unit = units.get(key);
+				if (unit != null) dirtyClasses.addAll(unit.topLevelClasses());
+			}
+			queue.clear();
+			for (Unit unit : units.values()) {
+				if (dirty.contains(unit.source)) continue;
+				for (String className : unit.references) {
+					if (dirtyClasses.contains(className)) {
+						dirty.add(unit.source);
+						queue.add(unit.source);
+						if (TRACE) trace("scar", "Dependent source: " + unit.source + " (references " + className + ")");
+						break;
+					}
+				}
+			}
+		}
+
+		// Delete stale class files and forget the dirty source files.
+		Paths stale = new Paths();
+		for (String key : dirty) {
+			Unit unit = units.remove(key);
+			if (unit != null) {
+				for (String className : unit.classes) {
+					File classFile = new File(outputDir, className.replace('.', '/') + ".class");
+					if (classFile.delete() && TRACE) trace("scar", "Deleted stale class file: " + classFile);
+				}
+			}
+			String file = current.get(key);
+			if (file != null) stale.addFile(file);
+		}
+		if (DEBUG) debug("scar", "Stale source: " + stale.count() + " of " + current.size() + " files");
+		return stale;
+	}
+
+	/** Records the current size and modification time of the specified source files that are in the graph. This is used when the
+	 * contents of the files are known to be the same as when the graph was built, such as when the classes were restored from a
+	 * {@link BuildCache}. */
+	public void touch (Paths source) {
+		for (String file : source.filesOnly()) {
+			Unit unit = units.get(key(file));
+			if (unit == null) continue;
+			File fileObject = new File(file);
+			unit.lastModified = fileObject.lastModified();
+			unit.length = fileObject.length();
+		}
+	}
+
+	/** Returns a copy of the graph with each source file keyed by its path relative to its source root, using "/", so the graph
+	 * can be stored and used with a different checkout of the same source files. Source files not in the paths are left out.
+	 * @see #rebase(Paths) */
+	public SourceGraph relativize (Paths source) {
+		if (source == null) throw new IllegalArgumentException("source cannot be null.");
+		Paths files = source.filesOnly();
+		List<String> paths = files.getPaths(), names = files.getRelativePaths();
+		SourceGraph graph = new SourceGraph();
+		graph.stamp = stamp;
+		for (int i = 0, n = paths.size(); i < n; i++) {
+			Unit unit = units.get(key(paths.get(i)));
+			if (unit != null) graph.units.put(names.get(i).replace('\\', '/'), new Unit(names.get(i).replace('\\', '/'), unit));
+		}
+		return graph;
+	}
+
+	/** Returns a copy of a graph from {@link #relativize(Paths)} with each source file keyed by the absolute path of the source
+	 * file with the same relative path. Source files not in the paths are left out. */
+	public SourceGraph rebase (Paths source) {
+		if (source == null) throw new IllegalArgumentException("source cannot be null.");
+		Paths files = source.filesOnly();
+		List<String> paths = files.getPaths(), names = files.getRelativePaths();
+		SourceGraph graph = new SourceGraph();
+		graph.stamp = stamp;
+		for (int i = 0, n = paths.size(); i < n; i++) {
+			Unit unit = units.get(names.get(i).replace('\\', '/'));
+			if (unit != null) {
+				String key = key(paths.get(i));
+				graph.units.put(key, new Unit(key, unit));
+			}
+		}
+		return graph;
+	}
+
+	/** Adds the specified source files to the graph, if not already present. This records source files which were compiled but
+	 * produced no classes. */
+	public synchronized void compiled (Paths source) {
+		for (String file : source.filesOnly())
+			unit(file);
+	}
+
+	public synchronized void output (String sourceFile, String className) {
+		unit(sourceFile).classes.add(className);
+	}
+
+	public synchronized void references (String sourceFile, Set<String> classNames) {
+		unit(sourceFile).references.addAll(classNames);
+	}
+
+	private Unit unit (String sourceFile) {
+		String key = key(sourceFile);
+		Unit unit = units.get(key);
+		if (unit == null) {
+			unit = new Unit(key);
+			File file = new File(sourceFile);
+			unit.lastModified = file.lastModified();
+			unit.length = file.length();
+			units.put(key, unit);
+		}
+		return unit;
+	}
+
+	/** Writes the graph to the specified file. Only references to classes produced by source files in the graph are stored. */
+	public void save (String file) throws IOException {
+		if (file == null) throw new IllegalArgumentException("file cannot be null.");
+
+		HashSet<String> classes = new HashSet();
+		for (Unit unit : units.values())
+			classes.addAll(unit.topLevelClasses());
+
+		File outputFile = new File(file).getAbsoluteFile();
+		Scar.mkdir(outputFile.getParent());
+		File tempFile = File.createTempFile(outputFile.getName(), ".tmp", outputFile.getParentFile());
+		try {
+			BufferedWriter writer = new BufferedWriter(new FileWriter(tempFile));
+			try {
+				writer.write(stamp);
+				writer.write('\n');
+				for (Unit unit : units.values()) {
+					writer.write("S\t" + unit.source + '\t' + unit.lastModified + '\t' + unit.length + '\n');
+					for (String className : unit.classes)
+						writer.write("C\t" + className + '\n');
+					for (String className : unit.references)
+						if (classes.contains(className)) writer.write("R\t" + className + '\n');
+				}
+			} finally {
+				writer.close();
+			}
+			try {
+				Files.move(tempFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException ex) {
+				Files.move(tempFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			tempFile.delete();
+		}
+	}
+
+	/** Reads a graph from the specified file.
+	 * @return An empty graph if the file does not exist or could not be read. */
+	static public SourceGraph load (String file) {
+		if (file == null) throw new IllegalArgumentException("file cannot be null.");
+
+		SourceGraph graph = new SourceGraph();
+		if (!new File(file).exists()) return graph;
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(file));
+			graph.stamp = reader.readLine();
+			if (graph.stamp == null) graph.stamp = "";
+			Unit unit = null;
+			while (true) {
+				String line = reader.readLine();
+				if (line == null) break;
+				if (line.startsWith("S\t")) {
+					String[] values = line.split("\t");
+					unit = new Unit(values[1]);
+					unit.lastModified = Long.parseLong(values[2]);
+					unit.length = Long.parseLong(values[3]);
+					graph.units.put(unit.source, unit);
+				} else if (line.startsWith("C\t"))
+					unit.classes.add(line.substring(2));
+				else if (line.startsWith("R\t")) //
+					unit.references.add(line.substring(2));
+			}
+		} catch (Exception ex) {
+			if (WARN) warn("scar", "Unable to read source graph, all source will be compiled: " + file, ex);
+			return new SourceGraph();
+		} finally {
+			try {
+				if (reader != null) reader.close();
+			} catch (Exception ignored) {
+			}
+		}
+		return graph;
+	}
+
+	static String key (String sourceFile) {
+		return new File(sourceFile).getAbsolutePath();
+	}
+
+	static class Unit {
+		final String source;
+		long lastModified, length;
+		final HashSet<String> classes = new HashSet();
+		final HashSet<String> references = new HashSet();
+
+		Unit (String source) {
+			this.source = source;
+		}
+
+		Unit (String source, Unit unit) {
+			this.source = source;
+			lastModified = unit.lastModified;
+			length = unit.length;
+			classes.addAll(unit.classes);
+			references.addAll(unit.references);
+		}
+
+		List<String> topLevelClasses () {
+			ArrayList<String> topLevel = new ArrayList(classes.size());
+			for (String className : classes)
+				if (className.indexOf('$') == -1) topLevel.add(className);
+			return topLevel;
+		}
+	}
+}
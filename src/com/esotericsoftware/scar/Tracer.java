@@ -0,0 +1,291 @@
+
+package com.esotericsoftware.scar;
+
+import static com.esotericsoftware.minlog.Log.*;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+
+/** Records timed spans for build phases and Scar utility methods and writes them as a Chrome trace event file, which can be
+ * viewed with chrome://tracing or https://ui.perfetto.dev. Recording is off until {@link #start()} is called, which
+ * {@link Build#main(String[])} does when the "profile" argument is given. While off, {@link #span(String, String, String)}
+ * returns a span that does nothing. */
+public class Tracer {
+	static private final Span disabled = new Span(null, null, null);
+	static private volatile boolean enabled;
+	static private long startTime;
+	static private final ArrayList<Span> spans = new ArrayList();
+	static private final LinkedHashMap<String, List<String>> dependencies = new LinkedHashMap();
+
+	/** Discards any recorded spans and starts recording. */
+	static public synchronized void start () {
+		spans.clear();
+		dependencies.clear();
+		startTime = System.nanoTime();
+		enabled = true;
+	}
+
+	/** Stops recording. Recorded spans are kept until {@link #start()} is called. */
+	static public void stop () {
+		enabled = false;
+	}
+
+	static public boolean isEnabled () {
+		return enabled;
+	}
+
+	/** Begins a span on the current thread. {@link Span#end()} must be called when the work is complete, typically in a finally
+	 * block.
+	 * @param category The kind of work, such as "build" or "file".
+	 * @param detail May be null. */
+	static public Span span (String category, String name, String detail) {
+		if (!enabled) return disabled;
+		return new Span(category, name, detail);
+	}
+
+	/** Records that a project depends on another project, for the critical path in {@link #summary()}. Projects are identified by
+	 * the name used for their "project" category spans. */
+	static public synchronized void dependency (String project, String dependency) {
+		if (!enabled) return;
+		List<String> list = dependencies.get(project);
+		if (list == null) {
+			list = new ArrayList();
+			dependencies.put(project, list);
+		}
+		if (!list.contains(dependency)) list.add(dependency);
+	}
+
+	static synchronized void add (Span span) {
+		if (enabled) spans.add(span);
+	}
+
+	/** Writes the recorded spans to the specified file in the Chrome trace event format and logs the {@link #summary()}. */
+	static public void write (String file) throws IOException {
+		if (file == null) throw new IllegalArgumentException("file cannot be null.");
+
+		ArrayList<Span> spans;
+		synchronized (Tracer.class) {
+			spans = new ArrayList(Tracer.spans);
+		}
+
+		if (DEBUG) debug("scar", "Writing profile (" + spans.size() + " spans): " + file);
+
+		File parent = new File(file).getAbsoluteFile().getParentFile();
+		if (parent != null) parent.mkdirs();
+		BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+		try {
+			writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n");
+			LinkedHashMap<Long, String> threads = new LinkedHashMap();
+			for (Span span : spans)
+				threads.put(span.threadID, span.threadName);
+			boolean first = true;
+			for (Entry<Long, String> entry : threads.entrySet()) {
+				if (!first) writer.write(",\n");
+				first = false;
+				writer.write("{\"ph\":\"M\",\"pid\":1,\"tid\":" + entry.getKey() + ",\"name\":\"thread_name\",\"args\":{\"name\":"
+					+ quote(entry.getValue()) + "}}");
+			}
+			for (Span span : spans) {
+				if (!first) writer.write(",\n");
+				first = false;
+				writer.write("{\"ph\":\"X\",\"pid\":1,\"tid\":" + span.threadID);
+				writer.write(",\"cat\":" + quote(span.category) + ",\"name\":" + quote(span.name));
+				writer.write(",\"ts\":" + micros(span.start - startTime) + ",\"dur\":" + micros(span.end - span.start));
+				if (span.detail != null) writer.write(",\"args\":{\"detail\":" + quote(span.detail) + "}");
+				writer.write('}');
+			}
+			writer.write("\n]}\n");
+		} finally {
+			try {
+				writer.close();
+			} catch (Exception ignored) {
+			}
+		}
+
+		if (INFO) info("scar", summary());
+	}
+
+	/** Returns the total time, the critical path through the recorded projects, the idle time of each thread, and the time spent
+	 * in each kind of span. */
+	static public String summary () {
+		ArrayList<Span> spans;
+		HashMap<String, List<String>> dependencies;
+		synchronized (Tracer.class) {
+			spans = new ArrayList(Tracer.spans);
+			dependencies = new HashMap(Tracer.dependencies);
+		}
+		StringBuilder buffer = new StringBuilder(1024);
+		if (spans.isEmpty()) return "Profile: no spans recorded.";
+
+		long first = Long.MAX_VALUE, last = Long.MIN_VALUE;
+		for (Span span : spans) {
+			first = Math.min(first, span.start);
+			last = Math.max(last, span.end);
+		}
+		long wall = last - first;
+		buffer.append("Profile: ").append(millis(wall)).append(" ms");
+
+		// Critical path: from the project that finished last, follow the dependency that finished last.
+		HashMap<String, Span> projects = new HashMap();
+		Span end = null;
+		for (Span span : spans) {
+			if (!span.category.equals("project")) continue;
+			projects.put(span.name, span);
+			if (end == null || span.end > end.end) end = span;
+		}
+		if (end != null) {
+			ArrayList<Span> path = new ArrayList();
+			for (Span span = end; span != null;) {
+				path.add(span);
+				Span next = null;
+				List<String> names = dependencies.get(span.name);
+				if (names != null) {
+					for (String name : names) {
+						Span dependency = projects.get(name);
+						if (dependency != null && dependency.end <= span.start && (next == null || dependency.end > next.end))
+							next = dependency;
+					}
+				}
+				span = next;
+			}
+			Collections.reverse(path);
+			buffer.append("\nCritical path: ").append(millis(end.end - path.get(0).start)).append(" ms");
+			Span previous = null;
+			for (Span span : path) {
+				buffer.append("\n  ").append(span.name).append(": ").append(millis(span.end - span.start)).append(" ms");
+				if (previous != null && span.start - previous.end > 0)
+					buffer.append(", waited ").append(millis(span.start - previous.end)).append(" ms");
+				previous = span;
+			}
+		}
+
+		// Idle time: the time each thread was not inside any span.
+		LinkedHashMap<Long, ArrayList<Span>> threads = new LinkedHashMap();
+		for (Span span : spans) {
+			ArrayList<Span> list = threads.get(span.threadID);
+			if (list == null) {
+				list = new ArrayList();
+				threads.put(span.threadID, list);
+			}
+			list.add(span);
+		}
+		buffer.append("\nIdle time:");
+		for (ArrayList<Span> list : threads.values()) {
+			Collections.sort(list, new Comparator<Span>() {
+				public int compare (Span a, Span b) {
+					return a.start < b.start ? -1 : (a.start > b.start ? 1 : 0);
+				}
+			});
+			long busy = 0, busyEnd = Long.MIN_VALUE;
+			for (Span span : list) {
+				if (span.end <= busyEnd) continue;
+				busy += span.end - Math.max(span.start, busyEnd);
+				busyEnd = span.end;
+			}
+			long idle = wall - busy;
+			buffer.append("\n  ").append(list.get(0).threadName).append(": ").append(millis(idle)).append(" ms (")
+				.append(wall == 0 ? 0 : idle * 100 / wall).append("%)");
+		}
+
+		// Total time for each kind of span, so fixed costs like sleeps stand out.
+		final HashMap<String, long[]> totals = new HashMap();
+		for (Span span : spans) {
+			if (span.category.equals("project")) continue;
+			long[] total = totals.get(span.name);
+			if (total == null) {
+				total = new long[2];
+				totals.put(span.name, total);
+			}
+			total[0] += span.end - span.start;
+			total[1]++;
+		}
+		ArrayList<String> names = new ArrayList(totals.keySet());
+		Collections.sort(names, new Comparator<String>() {
+			public int compare (String a, String b) {
+				long timeA = totals.get(a)[0], timeB = totals.get(b)[0];
+				return timeA > timeB ? -1 : (timeA < timeB ? 1 : 0);
+			}
+		});
+		buffer.append("\nTime by span:");
+		for (String name : names) {
+			long[] total = totals.get(name);
+			buffer.append("\n  ").append(name).append(": ").append(millis(total[0])).append(" ms (").append(total[1]).append(')');
+		}
+		return buffer.toString();
+	}
+
+	static private long millis (long nanos) {
+		return nanos / 1000000;
+	}
+
+	static private String micros (long nanos) {
+		return String.valueOf(nanos / 1000) + '.' + (nanos % 1000) / 100;
+	}
+
+	static private String quote (String text) {
+		StringBuilder buffer = new StringBuilder(text.length() + 2);
+		buffer.append('"');
+		for (int i = 0, n = text.length(); i < n; i++) {
+			char c = text.charAt(i);
+			switch (c) {
+			case '"':
+				buffer.append("\\\"");
+				break;
+			case '\\':
+				buffer.append("\\\\");
+				break;
+			case '\n':
+				buffer.append("\\n");
+				break;
+			case '\r':
+				buffer.append("\\r");
+				break;
+			case '\t':
+				buffer.append("\\t");
+				break;
+			default:
+				if (c < 0x20)
+					buffer.append(String.format("\\u%04x", (int)c));
+				else
+					buffer.append(c);
+			}
+		}
+		buffer.append('"');
+		return buffer.toString();
+	}
+
+	/** A timed unit of work on a single thread. */
+	static public class Span {
+		final String category, name, detail;
+		final long threadID;
+		final String threadName;
+		final long start;
+		long end;
+
+		Span (String category, String name, String detail) {
+			this.category = category;
+			this.name = name;
+			this.detail = detail;
+			Thread thread = Thread.currentThread();
+			threadID = thread.getId();
+			threadName = thread.getName();
+			start = System.nanoTime();
+		}
+
+		/** Ends the span and records it. Calling this more than once has no effect. */
+		public void end () {
+			if (this == disabled || end != 0) return;
+			end = System.nanoTime();
+			add(this);
+		}
+	}
+}
@@ -0,0 +1,266 @@
+
+package com.esotericsoftware.scar;
+
+import static com.esotericsoftware.minlog.Log.*;
+import static java.nio.file.StandardWatchEventKinds.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+
+/** Watches the "source" and "resources" directories and the project files of a project and its dependency projects, and rebuilds
+ * the projects affected by each change along with the projects that depend on them. Changes are collected until none occur for
+ * the delay, so saving many files at once causes a single rebuild. The projects stay loaded between rebuilds, see
+ * {@link Build#projects}. */
+public class Watcher {
+	private final String path;
+	private final long delay;
+	private final WatchService service;
+	private final HashMap<WatchKey, Path> keys = new HashMap();
+	private final HashMap<Path, Boolean> watched = new HashMap();
+	private final ArrayList<Root> roots = new ArrayList();
+	private ProjectGraph graph;
+
+	/** @param path Path to a YAML project file, or a directory containing a "project.yaml" file.
+	 * @param delay The milliseconds without changes to wait before rebuilding. */
+	public Watcher (String path, long delay) throws IOException {
+		if (path == null) throw new IllegalArgumentException("path cannot be null.");
+		this.path = path;
+		this.delay = delay;
+		service = FileSystems.getDefault().newWatchService();
+		load();
+	}
+
+	/** Loads the project graph and watches its roots. Directories that are no longer roots are no longer watched. If the project
+	 * can't be loaded, the error is logged and only the project's directory is watched, so it is loaded again when a project file
+	 * changes.
+	 * @return true if the project was loaded. */
+	private boolean load () throws IOException {
+		HashMap<WatchKey, Path> previous = new HashMap(keys);
+		keys.clear();
+		watched.clear();
+		roots.clear();
+		try {
+			graph = new ProjectGraph(Build.project(path));
+		} catch (Exception ex) {
+			if (ERROR) error("scar", "Unable to load project: " + path, ex);
+			graph = null;
+			File file = new File(path).getAbsoluteFile();
+			File dir = file.isDirectory() ? file : file.getParentFile();
+			watch(dir.toPath(), false);
+			roots.add(new Root(dir.getPath(), null, true));
+			cancel(previous);
+			return false;
+		}
+		for (ProjectGraph.Node node : graph.getNodes()) {
+			Project project = node.project;
+			String name = project.toString();
+			// Project files, such as "project.yaml".
+			String dir = project.getDirectory();
+			if (dir != null) {
+				watch(new File(dir).toPath(), false);
+				roots.add(new Root(new File(dir).getPath(), name, true));
+			}
+			for (String key : new String[] {"source", "resources"}) {
+				for (String dirPattern : project.getList(key)) {
+					String root = project.path(dirPattern);
+					int pipeIndex = root.indexOf('|');
+					if (pipeIndex != -1) root = root.substring(0, pipeIndex);
+					File file = new File(root);
+					if (file.isDirectory())
+						watch(file.toPath(), true);
+					else if (file.getParentFile() != null && file.getParentFile().isDirectory()) //
+						watch(file.getParentFile().toPath(), false);
+					else
+						continue;
+					roots.add(new Root(file.getPath(), name, false));
+				}
+			}
+		}
+		cancel(previous);
+		if (DEBUG) debug("scar", "Watching " + watched.size() + " directories.");
+		return true;
+	}
+
+	/** Stops watching the directories for the keys that were not registered again. */
+	private void cancel (HashMap<WatchKey, Path> previous) {
+		for (Entry<WatchKey, Path> entry : previous.entrySet()) {
+			if (keys.containsKey(entry.getKey())) continue;
+			entry.getKey().cancel();
+			if (TRACE) trace("scar", "Stopped watching: " + entry.getValue());
+		}
+	}
+
+	private void watch (Path dir, boolean recursive) throws IOException {
+		if (!recursive) {
+			register(dir, false);
+			return;
+		}
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+			public FileVisitResult preVisitDirectory (Path dir, BasicFileAttributes attributes) throws IOException {
+				register(dir, true);
+				return FileVisitResult.CONTINUE;
+			}
+
+			public FileVisitResult visitFileFailed (Path file, IOException ex) {
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private void register (Path dir, boolean recursive) throws IOException {
+		Boolean wasRecursive = watched.get(dir);
+		if (wasRecursive != null && (wasRecursive || !recursive)) return;
+		keys.put(dir.register(service, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+		watched.put(dir, recursive);
+		if (TRACE) trace("scar", "Watching: " + dir);
+	}
+
+	/** Waits for changes and rebuilds the affected projects. This method does not return unless interrupted. */
+	public void run () throws IOException {
+		if (INFO) info("scar", "Watching for changes.");
+		try {
+			while (true) {
+				LinkedHashSet<Path> changed = new LinkedHashSet();
+				boolean overflow = poll(service.take(), changed);
+				// Collect more changes until none occur for the delay.
+				while (true) {
+					WatchKey key = service.poll(delay, TimeUnit.MILLISECONDS);
+					if (key == null) break;
+					if (poll(key, changed)) overflow = true;
+				}
+				rebuild(changed, overflow);
+			}
+		} catch (InterruptedException ex) {
+			if (DEBUG) debug("scar", "Watching interrupted.");
+		} finally {
+			service.close();
+		}
+	}
+
+	/** Adds the changed files for the key.
+	 * @return true if events were lost. */
+	private boolean poll (WatchKey key, final LinkedHashSet<Path> changed) throws IOException {
+		boolean overflow = false;
+		Path dir = keys.get(key);
+		for (WatchEvent event : key.pollEvents()) {
+			if (event.kind() == OVERFLOW) {
+				overflow = true;
+				continue;
+			}
+			if (dir == null) continue;
+			Path file = dir.resolve((Path)event.context());
+			changed.add(file);
+			// New directories in a recursively watched directory are watched too.
+			if (event.kind() == ENTRY_CREATE && Boolean.TRUE.equals(watched.get(dir)) && Files.isDirectory(file)) {
+				watch(file, true);
+				Files.walkFileTree(file, new SimpleFileVisitor<Path>() {
+					public FileVisitResult visitFile (Path file, BasicFileAttributes attributes) {
+						changed.add(file);
+						return FileVisitResult.CONTINUE;
+					}
+				});
+			}
+		}
+		if (!key.reset()) {
+			keys.remove(key);
+			watched.remove(dir);
+		}
+		return overflow;
+	}
+
+	/** Rebuilds the projects that have a changed file under one of their roots, and all the projects that depend on them. */
+	private void rebuild (LinkedHashSet<Path> changed, boolean overflow) {
+		LinkedHashSet<String> names = new LinkedHashSet();
+		boolean reload = false;
+		for (Path file : changed) {
+			String filePath = file.toString();
+			for (Root root : roots) {
+				if (!filePath.equals(root.path) && !filePath.startsWith(root.path + File.separator)) continue;
+				if (root.projectFiles) {
+					// Other files in the project directory belong to another root.
+					if (!filePath.endsWith(".yaml") || !file.getParent().toString().equals(root.path)) continue;
+					reload = true;
+				}
+				if (root.name != null) names.add(root.name);
+			}
+		}
+		if (overflow) {
+			if (DEBUG) debug("scar", "Watch events were lost, rebuilding all projects.");
+			reload = true;
+		}
+		if (names.isEmpty() && !reload) return;
+		if (DEBUG) debug("scar", "Changed: " + changed.size() + " files");
+
+		long start = System.currentTimeMillis();
+		try {
+			if (reload) {
+				boolean failed = graph == null;
+				if (!load()) return;
+				// All projects are rebuilt if events were lost or the project could not be loaded before.
+				if (overflow || failed) {
+					for (ProjectGraph.Node node : graph.getNodes())
+						names.add(node.project.toString());
+				}
+			}
+
+			// Collect the changed projects and their dependents, in dependency order.
+			LinkedHashSet<ProjectGraph.Node> nodes = new LinkedHashSet();
+			for (String name : names) {
+				ProjectGraph.Node node = graph.getNode(name);
+				if (node != null) dependents(node, nodes);
+			}
+			ArrayList<ProjectGraph.Node> ordered = new ArrayList();
+			for (ProjectGraph.Node node : graph.getNodes())
+				if (nodes.contains(node)) ordered.add(node);
+			if (INFO) info("scar", "Rebuilding: " + ordered);
+
+			synchronized (Build.builtProjects) {
+				for (ProjectGraph.Node node : ordered)
+					Build.builtProjects.remove(node.project.toString());
+			}
+			graph.execute(ordered, Scar.threads(), new ProjectGraph.Task() {
+				public void run (Project project) throws IOException {
+					if (!Build.executeDocument(project)) Build.build(project);
+				}
+			});
+			if (INFO) info("scar", "Rebuilt in " + (System.currentTimeMillis() - start) + " ms.");
+		} catch (Throwable ex) {
+			if (ERROR) error("scar", "Rebuild failed.", ex);
+		}
+	}
+
+	static private void dependents (ProjectGraph.Node node, LinkedHashSet<ProjectGraph.Node> nodes) {
+		if (!nodes.add(node)) return;
+		for (ProjectGraph.Node dependent : node.getDependents())
+			dependents(dependent, nodes);
+	}
+
+	/** A file or directory being watched for a project. */
+	static private class Root {
+		final String path;
+		/** Null if the project could not be loaded. */
+		final String name;
+		/** True if the root is the project directory, where only project files are of interest. */
+		final boolean projectFiles;
+
+		Root (String path, String name, boolean projectFiles) {
+			this.path = path;
+			this.name = name;
+			this.projectFiles = projectFiles;
+		}
+	}
+}
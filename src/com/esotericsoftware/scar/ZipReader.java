@@ -0,0 +1,309 @@
+
+package com.esotericsoftware.scar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/** Reads the entries of a ZIP or JAR file from its central directory, without reading the entries themselves. An entry's
+ * compressed bytes can be copied to another archive as they are using {@link ZipWriter#addRaw(String, ZipReader, Entry)}, so
+ * entries that don't change are not inflated and deflated again. Reads use positions rather than seeking, so entries can be read
+ * by many threads at once. ZIP64 files are supported. */
+public class ZipReader implements Closeable {
+	private final String file;
+	private final RandomAccessFile randomAccessFile;
+	private final FileChannel channel;
+	private final ArrayList<Entry> entries = new ArrayList();
+	private final HashMap<String, Entry> names = new HashMap();
+
+	public ZipReader (String file) throws IOException {
+		if (file == null) throw new IllegalArgumentException("file cannot be null.");
+		this.file = file;
+		randomAccessFile = new RandomAccessFile(file, "r");
+		channel = randomAccessFile.getChannel();
+		try {
+			readCentralDirectory();
+		} catch (IOException ex) {
+			close();
+			throw ex;
+		} catch (RuntimeException ex) {
+			close();
+			throw ex;
+		}
+	}
+
+	public String getFile () {
+		return file;
+	}
+
+	/** Returns the entries in the order of the central directory. */
+	public List<Entry> getEntries () {
+		return Collections.unmodifiableList(entries);
+	}
+
+	/** Returns the entry with the name, or null. Names using "\\" and "/" are treated the same. If there are several entries with
+	 * the name, the first is returned. */
+	public Entry getEntry (String name) {
+		return names.get(name.replace('\\', '/'));
+	}
+
+	/** Returns the number of entries, the size, and the offset of the central directory, from the end of central directory record
+	 * and the ZIP64 records if present. */
+	static private long[] findCentralDirectory (FileChannel channel, String file) throws IOException {
+		// Find the end of central directory record, which is followed by a comment of up to 65535 bytes.
+		long length = channel.size();
+		int tailLength = (int)Math.min(length, 22 + 0xffff);
+		ByteBuffer tail = read(channel, length - tailLength, tailLength, file);
+		int endIndex = -1;
+		for (int i = tailLength - 22; i >= 0; i--) {
+			if (tail.getInt(i) == 0x06054b50) {
+				endIndex = i;
+				break;
+			}
+		}
+		if (endIndex == -1) throw new ZipException("End of central directory not found: " + file);
+		long count = tail.getShort(endIndex + 10) & 0xffff;
+		long centralSize = tail.getInt(endIndex + 12) & 0xffffffffL;
+		long centralOffset = tail.getInt(endIndex + 16) & 0xffffffffL;
+
+		// The ZIP64 locator is just before the end record.
+		if (endIndex >= 20 && tail.getInt(endIndex - 20) == 0x07064b50) {
+			ByteBuffer zip64 = read(channel, tail.getLong(endIndex - 12), 56, file);
+			if (zip64.getInt(0) != 0x06064b50) throw new ZipException("Invalid ZIP64 end of central directory: " + file);
+			count = zip64.getLong(32);
+			centralSize = zip64.getLong(40);
+			centralOffset = zip64.getLong(48);
+		}
+		if (centralSize > Integer.MAX_VALUE) throw new ZipException("Central directory is too large: " + file);
+		return new long[] {count, centralSize, centralOffset};
+	}
+
+	private void readCentralDirectory () throws IOException {
+		long[] centralDirectory = findCentralDirectory(channel, file);
+		long count = centralDirectory[0];
+		ByteBuffer central = read(centralDirectory[2], (int)centralDirectory[1]);
+		int position = 0;
+		entries.ensureCapacity((int)Math.min(count, 65536));
+		for (long i = 0; i < count; i++) {
+			if (central.getInt(position) != 0x02014b50) throw new ZipException("Invalid central directory entry: " + file);
+			Entry entry = new Entry();
+			entry.flags = central.getShort(position + 8) & 0xffff;
+			entry.method = central.getShort(position + 10) & 0xffff;
+			entry.dosTime = central.getInt(position + 12) & 0xffffffffL;
+			entry.crc = central.getInt(position + 16) & 0xffffffffL;
+			entry.compressedSize = central.getInt(position + 20) & 0xffffffffL;
+			entry.size = central.getInt(position + 24) & 0xffffffffL;
+			int nameLength = central.getShort(position + 28) & 0xffff;
+			int extraLength = central.getShort(position + 30) & 0xffff;
+			int commentLength = central.getShort(position + 32) & 0xffff;
+			entry.offset = central.getInt(position + 42) & 0xffffffffL;
+			byte[] name = new byte[nameLength];
+			central.position(position + 46);
+			central.get(name);
+			entry.name = new String(name, "UTF-8");
+
+			// ZIP64 values are present only for the fields that don't fit.
+			int extra = position + 46 + nameLength, extraEnd = extra + extraLength;
+			while (extra + 4 <= extraEnd) {
+				int id = central.getShort(extra) & 0xffff, size = central.getShort(extra + 2) & 0xffff;
+				if (id == 1) {
+					int field = extra + 4;
+					if (entry.size == 0xffffffffL) {
+						entry.size = central.getLong(field);
+						field += 8;
+					}
+					if (entry.compressedSize == 0xffffffffL) {
+						entry.compressedSize = central.getLong(field);
+						field += 8;
+					}
+					if (entry.offset == 0xffffffffL) entry.offset = central.getLong(field);
+				}
+				extra += 4 + size;
+			}
+
+			entries.add(entry);
+			String key = entry.name.replace('\\', '/');
+			if (!names.containsKey(key)) names.put(key, entry);
+			position = extraEnd + commentLength;
+		}
+	}
+
+	/** Returns the position of the entry's compressed bytes, which follow its local header. */
+	long dataOffset (Entry entry) throws IOException {
+		if (entry.dataOffset == -1) {
+			ByteBuffer header = read(entry.offset, 30);
+			if (header.getInt(0) != 0x04034b50) throw new ZipException("Invalid local header: " + entry.name);
+			entry.dataOffset = entry.offset + 30 + (header.getShort(26) & 0xffff) + (header.getShort(28) & 0xffff);
+		}
+		return entry.dataOffset;
+	}
+
+	/** Copies the entry's compressed bytes to the output. */
+	public void copyRaw (Entry entry, OutputStream output) throws IOException {
+		if (entry == null) throw new IllegalArgumentException("entry cannot be null.");
+		if (output == null) throw new IllegalArgumentException("output cannot be null.");
+		if ((entry.flags & 1) != 0) throw new ZipException("Encrypted entries are not supported: " + entry.name);
+		long position = dataOffset(entry), remaining = entry.compressedSize;
+		ByteBuffer buffer = ByteBuffer.allocate((int)Math.min(remaining, 64 * 1024));
+		while (remaining > 0) {
+			buffer.clear();
+			if (remaining < buffer.capacity()) buffer.limit((int)remaining);
+			int count = channel.read(buffer, position);
+			if (count == -1) throw new EOFException("Unexpected end of ZIP file: " + entry.name);
+			output.write(buffer.array(), 0, count);
+			position += count;
+			remaining -= count;
+		}
+	}
+
+	/** Returns a stream of the entry's uncompressed bytes. */
+	public InputStream getInputStream (Entry entry) throws IOException {
+		if (entry == null) throw new IllegalArgumentException("entry cannot be null.");
+		if ((entry.flags & 1) != 0) throw new ZipException("Encrypted entries are not supported: " + entry.name);
+		long dataOffset = dataOffset(entry);
+		switch (entry.method) {
+		case ZipEntry.STORED:
+			return new ChannelInputStream(dataOffset, entry.compressedSize, false);
+		case ZipEntry.DEFLATED:
+			final Inflater inflater = new Inflater(true);
+			InputStream input = new ChannelInputStream(dataOffset, entry.compressedSize, true);
+			return new InflaterInputStream(input, inflater, (int)Math.max(512, Math.min(entry.compressedSize, 64 * 1024))) {
+				private boolean closed;
+
+				public void close () throws IOException {
+					if (closed) return;
+					closed = true;
+					inflater.end();
+					super.close();
+				}
+			};
+		}
+		throw new ZipException("Unsupported compression method " + entry.method + ": " + entry.name);
+	}
+
+	/** Returns the entry's uncompressed bytes. */
+	public byte[] readBytes (Entry entry) throws IOException {
+		InputStream input = getInputStream(entry);
+		try {
+			ByteArrayOutputStream output = new ByteArrayOutputStream((int)Math.max(32, Math.min(entry.size, Integer.MAX_VALUE)));
+			byte[] buffer = new byte[(int)Math.max(512, Math.min(entry.size, 64 * 1024))];
+			while (true) {
+				int count = input.read(buffer);
+				if (count == -1) break;
+				output.write(buffer, 0, count);
+			}
+			return output.toByteArray();
+		} finally {
+			input.close();
+		}
+	}
+
+	private ByteBuffer read (long position, int length) throws IOException {
+		return read(channel, position, length, file);
+	}
+
+	static private ByteBuffer read (FileChannel channel, long position, int length, String file) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining()) {
+			int count = channel.read(buffer, position + buffer.position());
+			if (count == -1) throw new EOFException("Unexpected end of ZIP file: " + file);
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	public void close () throws IOException {
+		randomAccessFile.close();
+	}
+
+	/** Reads part of the file without changing the channel's position. */
+	private class ChannelInputStream extends InputStream {
+		private long position, remaining;
+		private boolean pad;
+
+		/** @param pad If true, an extra zero byte is returned at the end, which an {@link Inflater} that reads raw deflate data
+		 *           may need to finish. */
+		ChannelInputStream (long position, long length, boolean pad) {
+			this.position = position;
+			remaining = length;
+			this.pad = pad;
+		}
+
+		public int read () throws IOException {
+			byte[] bytes = new byte[1];
+			return read(bytes, 0, 1) == -1 ? -1 : bytes[0] & 0xff;
+		}
+
+		public int read (byte[] bytes, int offset, int length) throws IOException {
+			if (remaining <= 0) {
+				if (!pad || length == 0) return -1;
+				pad = false;
+				bytes[offset] = 0;
+				return 1;
+			}
+			if (length > remaining) length = (int)remaining;
+			int count = channel.read(ByteBuffer.wrap(bytes, offset, length), position);
+			if (count == -1) throw new EOFException("Unexpected end of ZIP file: " + file);
+			position += count;
+			remaining -= count;
+			return count;
+		}
+
+		public int available () {
+			return (int)Math.min(remaining, Integer.MAX_VALUE);
+		}
+	}
+
+	/** An entry from the central directory. */
+	static public class Entry {
+		String name;
+		int flags, method;
+		long dosTime, crc, size, compressedSize, offset;
+		volatile long dataOffset = -1;
+
+		public String getName () {
+			return name;
+		}
+
+		/** @return {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}. */
+		public int getMethod () {
+			return method;
+		}
+
+		public long getCrc () {
+			return crc;
+		}
+
+		/** Returns the uncompressed size. */
+		public long getSize () {
+			return size;
+		}
+
+		public long getCompressedSize () {
+			return compressedSize;
+		}
+
+		public boolean isDirectory () {
+			return name.endsWith("/");
+		}
+
+		public String toString () {
+			return name;
+		}
+	}
+}
@@ -0,0 +1,760 @@
+
+package com.esotericsoftware.scar;
+
+import static com.esotericsoftware.minlog.Log.*;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/** Writes a ZIP or JAR file, compressing the entries concurrently. Entries are read and deflated by a pool of threads while
+ * earlier entries are written, and are written to the file in the order they were added. Compressed entries are kept in memory
+ * until written, except for large files which are compressed to a temporary file. A {@link CompressionPolicy} decides whether
+ * each entry is deflated or stored. The number of entries compressed ahead of
+ * the writer is limited, so memory use does not grow with the size of the archive.
+ * <p>
+ * The file has the same layout as one written by {@link java.util.jar.JarOutputStream}: UTF-8 names, the JAR magic extra field
+ * on the first entry, and ZIP64 records when there are more than 65535 entries or the file is larger than 4 GB. */
+public class ZipWriter implements Closeable {
+	/** Files larger than this are compressed to a temporary file rather than to memory. */
+	static private final long spillSize = 16 * 1024 * 1024;
+	/** The most bytes of input that are compressed ahead of the writer. */
+	static private final long maxPendingBytes = 64 * 1024 * 1024;
+	static private final int jarMagicID = 0xcafe;
+
+	private final OutputStream output;
+	private final File file, tempFile;
+	private final CompareOutputStream compare;
+	private final CompressionPolicy policy;
+	private final ExecutorService executor;
+	private final int maxPending;
+	private final ArrayDeque<Future<Entry>> pending = new ArrayDeque();
+	private final ArrayDeque<Long> pendingSizes = new ArrayDeque();
+	private long pendingBytes;
+	private final ArrayList<Entry> entries = new ArrayList();
+	private final byte[] buffer = new byte[512];
+	private long dosTime = dosTime(System.currentTimeMillis());
+	private long offset;
+	private int reused;
+	private boolean jarMagic = true, closed, failed, changed = true;
+
+	/** @param policy May be null to use {@link Scar#compression}.
+	 * @param threads The number of threads used to compress entries. If less than 2, entries are compressed when they are
+	 *           added. */
+	public ZipWriter (String file, CompressionPolicy policy, int threads) throws IOException {
+		this(file, policy, threads, false);
+	}
+
+	/** @param policy May be null to use {@link Scar#compression}.
+	 * @param threads The number of threads used to compress entries. If less than 2, entries are compressed when they are
+	 *           added.
+	 * @param skipUnchanged If true and the file exists, the new file is written to a temporary file and compared to the existing
+	 *           file as it is written. The existing file is replaced only if the bytes differ, so an unchanged file keeps its
+	 *           modification time, see {@link #isChanged()}. */
+	public ZipWriter (String file, CompressionPolicy policy, int threads, boolean skipUnchanged) throws IOException {
+		if (file == null) throw new IllegalArgumentException("file cannot be null.");
+		this.policy = policy != null ? policy : Scar.compression;
+		this.file = new File(file);
+		if (skipUnchanged && this.file.isFile()) {
+			tempFile = File.createTempFile(this.file.getName(), ".tmp", this.file.getAbsoluteFile().getParentFile());
+			compare = new CompareOutputStream(new FileOutputStream(tempFile), this.file);
+			output = new BufferedOutputStream(compare, 64 * 1024);
+		} else {
+			tempFile = null;
+			compare = null;
+			output = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+		}
+		if (threads < 2) {
+			executor = null;
+			maxPending = 0;
+		} else {
+			executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				final AtomicInteger count = new AtomicInteger();
+
+				public Thread newThread (Runnable runnable) {
+					Thread thread = new Thread(runnable, "zip-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			maxPending = threads * 4;
+		}
+	}
+
+	/** Returns false if the writer skips unchanged files and the existing file was kept because the new file had the same bytes.
+	 * Valid after {@link #close()}. */
+	public boolean isChanged () {
+		return changed;
+	}
+
+	/** Sets the modification time of the entries added after this call. By default, the time the writer was created is used. */
+	public void setTime (long time) {
+		dosTime = dosTime(time);
+	}
+
+	/** If false, the JAR magic extra field is not written on the first entry, for ZIP files that are not JARs. Default is true. */
+	public void setJarMagic (boolean jarMagic) {
+		this.jarMagic = jarMagic;
+	}
+
+	/** Adds an entry with the bytes as its contents. The bytes must not be modified until the writer is closed. */
+	public void add (String name, byte[] bytes) throws IOException {
+		if (bytes == null) throw new IllegalArgumentException("bytes cannot be null.");
+		add(name, (Object)bytes);
+	}
+
+	/** Adds an entry with the contents of the file, which is read when the entry is compressed. */
+	public void add (String name, String file) throws IOException {
+		if (file == null) throw new IllegalArgumentException("file cannot be null.");
+		add(name, (Object)file);
+	}
+
+	/** Adds an entry with the bytes as its contents, like {@link #add(String, byte[])}, unless they are the same as the contents of
+	 * an entry from a previous version of the archive. Then the previous entry's compressed bytes are copied as they are, like
+	 * {@link #addRaw(String, ZipReader, ZipReader.Entry)}. The contents are the same if they have the same size and CRC, which are
+	 * checked by the threads compressing the entries. The reader must not be closed until this writer is closed.
+	 * @param previousEntry May be null. */
+	public void add (String name, byte[] bytes, ZipReader previous, ZipReader.Entry previousEntry) throws IOException {
+		if (bytes == null) throw new IllegalArgumentException("bytes cannot be null.");
+		add(name, previousEntry == null ? bytes : new Reuse(bytes, previous, previousEntry));
+	}
+
+	/** Adds an entry with the contents of the file, like {@link #add(String, String)}, unless they are the same as the contents of
+	 * an entry from a previous version of the archive.
+	 * @param previousEntry May be null.
+	 * @see #add(String, byte[], ZipReader, ZipReader.Entry) */
+	public void add (String name, String file, ZipReader previous, ZipReader.Entry previousEntry) throws IOException {
+		if (file == null) throw new IllegalArgumentException("file cannot be null.");
+		add(name, previousEntry == null ? file : new Reuse(file, previous, previousEntry));
+	}
+
+	/** Returns the number of entries whose compressed bytes were reused from a previous version of the archive. */
+	public int getReused () {
+		return reused;
+	}
+
+	/** Adds an entry whose contents are returned by the callable, which is called by the threads compressing the entries, so the
+	 * contents of many entries can be computed concurrently.
+	 * @param size The expected size of the contents, used to limit how much is compressed ahead of the writer. */
+	public void add (String name, long size, Callable<byte[]> contents) throws IOException {
+		if (contents == null) throw new IllegalArgumentException("contents cannot be null.");
+		add(name, new Contents(contents, size));
+	}
+
+	/** Adds an entry with the compressed bytes of an entry from another archive, which are copied as they are without being
+	 * inflated or compressed again. The reader must not be closed until this writer is closed.
+	 * @param name The name for the entry, which may differ from the name in the other archive. */
+	public void addRaw (String name, ZipReader reader, ZipReader.Entry readerEntry) throws IOException {
+		if (name == null) throw new IllegalArgumentException("name cannot be null.");
+		if (reader == null) throw new IllegalArgumentException("reader cannot be null.");
+		if (readerEntry == null) throw new IllegalArgumentException("readerEntry cannot be null.");
+		if (closed) throw new IllegalStateException("ZipWriter is closed.");
+		Entry entry = new Entry();
+		entry.name = name;
+		entry.dosTime = dosTime;
+		entry.method = readerEntry.getMethod();
+		entry.crc = readerEntry.getCrc();
+		entry.size = readerEntry.getSize();
+		entry.compressedSize = readerEntry.getCompressedSize();
+		entry.reader = reader;
+		entry.readerEntry = readerEntry;
+		boolean success = false;
+		try {
+			if (executor == null)
+				write(entry);
+			else {
+				// Written in order after the entries before it are compressed.
+				pending.add(CompletableFuture.completedFuture(entry));
+				pendingSizes.add(0L);
+				while (!pending.isEmpty() && (pending.size() > maxPending || pending.peek().isDone()))
+					write(next());
+			}
+			success = true;
+		} finally {
+			if (!success) failed = true;
+		}
+	}
+
+	private void add (final String name, final Object source) throws IOException {
+		if (name == null) throw new IllegalArgumentException("name cannot be null.");
+		if (closed) throw new IllegalStateException("ZipWriter is closed.");
+		final long dosTime = this.dosTime;
+		boolean success = false;
+		try {
+			if (executor == null)
+				write(compress(name, source, dosTime));
+			else {
+				Object sizeSource = source instanceof Reuse ? ((Reuse)source).source : source;
+				long size;
+				if (sizeSource instanceof byte[])
+					size = ((byte[])sizeSource).length;
+				else if (sizeSource instanceof Contents)
+					size = ((Contents)sizeSource).size;
+				else
+					size = new File((String)sizeSource).length();
+				pending.add(executor.submit(new Callable<Entry>() {
+					public Entry call () throws Exception {
+						return compress(name, source, dosTime);
+					}
+				}));
+				pendingSizes.add(size);
+				pendingBytes += size;
+				// Write the entries that are done, waiting for the oldest if too much is ahead of the writer.
+				while (!pending.isEmpty()
+					&& (pending.size() > maxPending || pendingBytes > maxPendingBytes || pending.peek().isDone()))
+					write(next());
+			}
+			success = true;
+		} finally {
+			if (!success) failed = true;
+		}
+	}
+
+	private Entry next () throws IOException {
+		Future<Entry> future = pending.poll();
+		pendingBytes -= pendingSizes.poll();
+		try {
+			return future.get();
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof IOException) throw (IOException)cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+			throw new RuntimeException(cause);
+		} catch (InterruptedException ex) {
+			throw new RuntimeException("Interrupted while writing ZIP entries.", ex);
+		}
+	}
+
+	/** Reads and compresses the source as decided by the policy. This is called concurrently by the pool threads. */
+	private Entry compress (String name, Object source, long dosTime) throws IOException {
+		Entry entry = new Entry();
+		entry.name = name;
+		entry.dosTime = dosTime;
+		if (source instanceof Reuse) {
+			Reuse reuse = (Reuse)source;
+			if (reuse(entry, reuse)) return entry;
+			source = reuse.source;
+		}
+		if (source instanceof byte[]) {
+			byte[] bytes = (byte[])source;
+			compress(entry, bytes, bytes.length);
+		} else if (source instanceof Contents) {
+			byte[] bytes;
+			try {
+				bytes = ((Contents)source).callable.call();
+			} catch (IOException ex) {
+				throw ex;
+			} catch (RuntimeException ex) {
+				throw ex;
+			} catch (Exception ex) {
+				throw new IOException("Error computing ZIP entry: " + name, ex);
+			}
+			if (bytes == null) throw new IOException("ZIP entry contents cannot be null: " + name);
+			compress(entry, bytes, bytes.length);
+		} else {
+			File file = new File((String)source);
+			long length = file.length();
+			InputStream input = new FileInputStream(file);
+			try {
+				if (length <= spillSize) {
+					byte[] bytes = new byte[(int)length];
+					int count = read(input, bytes);
+					compress(entry, bytes, count);
+				} else
+					spill(entry, input);
+			} finally {
+				try {
+					input.close();
+				} catch (Exception ignored) {
+				}
+			}
+		}
+		return entry;
+	}
+
+	/** Sets the entry to copy the previous entry's compressed bytes, if the source has the same size and CRC.
+	 * @return false if the source differs from the previous entry. */
+	private boolean reuse (Entry entry, Reuse reuse) throws IOException {
+		ZipReader.Entry previous = reuse.previousEntry;
+		if (previous.isDirectory() != entry.name.endsWith("/")) return false;
+		CRC32 crc = new CRC32();
+		if (reuse.source instanceof byte[]) {
+			byte[] bytes = (byte[])reuse.source;
+			if (bytes.length != previous.getSize()) return false;
+			crc.update(bytes, 0, bytes.length);
+		} else {
+			File file = new File((String)reuse.source);
+			if (file.length() != previous.getSize()) return false;
+			InputStream input = new FileInputStream(file);
+			try {
+				byte[] buffer = new byte[(int)Math.max(512, Math.min(previous.getSize(), 64 * 1024))];
+				while (true) {
+					int count = input.read(buffer);
+					if (count == -1) break;
+					crc.update(buffer, 0, count);
+				}
+			} finally {
+				try {
+					input.close();
+				} catch (Exception ignored) {
+				}
+			}
+		}
+		if (crc.getValue() != previous.getCrc()) return false;
+		entry.method = previous.getMethod();
+		entry.crc = previous.getCrc();
+		entry.size = previous.getSize();
+		entry.compressedSize = previous.getCompressedSize();
+		entry.reader = reuse.previous;
+		entry.readerEntry = previous;
+		entry.reused = true;
+		return true;
+	}
+
+	private void compress (Entry entry, byte[] bytes, int count) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, count);
+		entry.crc = crc.getValue();
+		entry.size = count;
+		if (!policy.store(entry.name, bytes, count)) {
+			Deflater deflater = new Deflater(policy.getLevel(), true);
+			try {
+				entry.data = deflate(deflater, bytes, count);
+			} finally {
+				deflater.end();
+			}
+			if (entry.data.length < count) {
+				entry.method = ZipEntry.DEFLATED;
+				entry.compressedSize = entry.data.length;
+				return;
+			}
+			if (TRACE) trace("scar", "ZIP entry is not smaller when deflated: " + entry.name);
+		}
+		entry.method = ZipEntry.STORED;
+		entry.data = count == bytes.length ? bytes : Arrays.copyOf(bytes, count);
+		entry.compressedSize = count;
+	}
+
+	static private byte[] deflate (Deflater deflater, byte[] bytes, int count) {
+		deflater.setInput(bytes, 0, count);
+		deflater.finish();
+		ByteArrayOutputStream output = new ByteArrayOutputStream(Math.max(64, count / 2));
+		byte[] buffer = new byte[Math.max(512, Math.min(count, 64 * 1024))];
+		while (!deflater.finished()) {
+			int length = deflater.deflate(buffer);
+			output.write(buffer, 0, length);
+		}
+		return output.toByteArray();
+	}
+
+	/** Compresses the input to a temporary file. The policy decides using the first part of the input. */
+	private void spill (Entry entry, InputStream input) throws IOException {
+		File spillFile = File.createTempFile("scar", "zip");
+		OutputStream output = new BufferedOutputStream(new FileOutputStream(spillFile), 64 * 1024);
+		CRC32 crc = new CRC32();
+		Deflater deflater = null;
+		boolean success = false;
+		try {
+			byte[] inputBuffer = new byte[64 * 1024], buffer = new byte[64 * 1024];
+			int count = read(input, inputBuffer);
+			if (!policy.store(entry.name, inputBuffer, count)) deflater = new Deflater(policy.getLevel(), true);
+			long size = 0;
+			while (count > 0) {
+				crc.update(inputBuffer, 0, count);
+				size += count;
+				if (deflater == null)
+					output.write(inputBuffer, 0, count);
+				else {
+					deflater.setInput(inputBuffer, 0, count);
+					while (!deflater.needsInput())
+						output.write(buffer, 0, deflater.deflate(buffer));
+				}
+				count = input.read(inputBuffer);
+			}
+			if (deflater != null) {
+				deflater.finish();
+				while (!deflater.finished())
+					output.write(buffer, 0, deflater.deflate(buffer));
+			}
+			entry.method = deflater == null ? ZipEntry.STORED : ZipEntry.DEFLATED;
+			entry.crc = crc.getValue();
+			entry.size = size;
+			entry.compressedSize = deflater == null ? size : deflater.getBytesWritten();
+			entry.spillFile = spillFile;
+			success = true;
+		} finally {
+			if (deflater != null) deflater.end();
+			output.close();
+			if (!success) spillFile.delete();
+		}
+	}
+
+	/** Reads until the buffer is full or the end of the input.
+	 * @return The number of bytes read. */
+	static private int read (InputStream input, byte[] buffer) throws IOException {
+		int count = 0;
+		while (count < buffer.length) {
+			int read = input.read(buffer, count, buffer.length - count);
+			if (read == -1) break;
+			count += read;
+		}
+		return count;
+	}
+
+	/** Writes the local header and data for the entry. */
+	private void write (Entry entry) throws IOException {
+		try {
+			byte[] name = entry.name.getBytes("UTF-8");
+			entry.offset = offset;
+			boolean zip64 = entry.size >= 0xffffffffL || entry.compressedSize >= 0xffffffffL;
+			entry.jarMagic = jarMagic && entries.isEmpty();
+			int extraLength = (zip64 ? 20 : 0) + (entry.jarMagic ? 4 : 0);
+
+			writeInt(0x04034b50);
+			writeShort(zip64 ? 45 : version(entry));
+			writeShort(0x800); // UTF-8 names.
+			writeShort(entry.method);
+			writeInt(entry.dosTime);
+			writeInt(entry.crc);
+			writeInt(zip64 ? 0xffffffffL : entry.compressedSize);
+			writeInt(zip64 ? 0xffffffffL : entry.size);
+			writeShort(name.length);
+			writeShort(extraLength);
+			writeBytes(name, name.length);
+			if (entry.jarMagic) {
+				writeShort(jarMagicID);
+				writeShort(0);
+			}
+			if (zip64) {
+				writeShort(1);
+				writeShort(16);
+				writeLong(entry.size);
+				writeLong(entry.compressedSize);
+			}
+
+			if (entry.data != null)
+				writeBytes(entry.data, entry.data.length);
+			else if (entry.reader != null) {
+				entry.reader.copyRaw(entry.readerEntry, new OutputStream() {
+					public void write (int b) throws IOException {
+						buffer[0] = (byte)b;
+						writeBytes(buffer, 1);
+					}
+
+					public void write (byte[] bytes, int offset, int count) throws IOException {
+						output.write(bytes, offset, count);
+						ZipWriter.this.offset += count;
+					}
+				});
+			} else {
+				InputStream input = new FileInputStream(entry.spillFile);
+				try {
+					byte[] buffer = new byte[64 * 1024];
+					while (true) {
+						int count = input.read(buffer);
+						if (count == -1) break;
+						writeBytes(buffer, count);
+					}
+				} finally {
+					try {
+						input.close();
+					} catch (Exception ignored) {
+					}
+				}
+			}
+		} finally {
+			entry.data = null;
+			entry.reader = null;
+			entry.readerEntry = null;
+			if (entry.spillFile != null) {
+				entry.spillFile.delete();
+				entry.spillFile = null;
+			}
+		}
+		entries.add(entry);
+		if (entry.reused) reused++;
+		if (TRACE) trace("scar", "ZIP entry: " + entry.name + " (" + entry.size + " -> " + entry.compressedSize + ")");
+	}
+
+	/** Waits for the remaining entries to be compressed and written, then writes the central directory and closes the file. If
+	 * adding an entry failed, the file is only closed. */
+	public void close () throws IOException {
+		if (closed) return;
+		closed = true;
+		boolean success = false;
+		try {
+			if (failed) return;
+			while (!pending.isEmpty())
+				write(next());
+
+			long centralOffset = offset;
+			for (Entry entry : entries) {
+				byte[] name = entry.name.getBytes("UTF-8");
+				boolean zip64Size = entry.size >= 0xffffffffL || entry.compressedSize >= 0xffffffffL;
+				boolean zip64Offset = entry.offset >= 0xffffffffL;
+				int zip64Length = (zip64Size ? 16 : 0) + (zip64Offset ? 8 : 0);
+				int extraLength = (zip64Length > 0 ? zip64Length + 4 : 0) + (entry.jarMagic ? 4 : 0);
+				int version = zip64Length > 0 ? 45 : version(entry);
+
+				writeInt(0x02014b50);
+				writeShort(version); // Version made by.
+				writeShort(version); // Version needed to extract.
+				writeShort(0x800);
+				writeShort(entry.method);
+				writeInt(entry.dosTime);
+				writeInt(entry.crc);
+				writeInt(zip64Size ? 0xffffffffL : entry.compressedSize);
+				writeInt(zip64Size ? 0xffffffffL : entry.size);
+				writeShort(name.length);
+				writeShort(extraLength);
+				writeShort(0); // Comment length.
+				writeShort(0); // Disk number.
+				writeShort(0); // Internal attributes.
+				writeInt(0); // External attributes.
+				writeInt(zip64Offset ? 0xffffffffL : entry.offset);
+				writeBytes(name, name.length);
+				if (entry.jarMagic) {
+					writeShort(jarMagicID);
+					writeShort(0);
+				}
+				if (zip64Length > 0) {
+					writeShort(1);
+					writeShort(zip64Length);
+					if (zip64Size) {
+						writeLong(entry.size);
+						writeLong(entry.compressedSize);
+					}
+					if (zip64Offset) writeLong(entry.offset);
+				}
+			}
+			long centralSize = offset - centralOffset;
+
+			int count = entries.size();
+			if (count >= 0xffff || centralOffset >= 0xffffffffL || centralSize >= 0xffffffffL) {
+				long zip64Offset = offset;
+				writeInt(0x06064b50); // ZIP64 end of central directory.
+				writeLong(44);
+				writeShort(45);
+				writeShort(45);
+				writeInt(0);
+				writeInt(0);
+				writeLong(count);
+				writeLong(count);
+				writeLong(centralSize);
+				writeLong(centralOffset);
+				writeInt(0x07064b50); // ZIP64 end of central directory locator.
+				writeInt(0);
+				writeLong(zip64Offset);
+				writeInt(1);
+			}
+			writeInt(0x06054b50);
+			writeShort(0);
+			writeShort(0);
+			writeShort(Math.min(count, 0xffff));
+			writeShort(Math.min(count, 0xffff));
+			writeInt(Math.min(centralSize, 0xffffffffL));
+			writeInt(Math.min(centralOffset, 0xffffffffL));
+			writeShort(0); // Comment length.
+			success = true;
+		} finally {
+			if (executor != null) {
+				executor.shutdownNow();
+				// Delete any temporary files from entries that were compressed but not written.
+				for (Future<Entry> future : pending) {
+					future.cancel(true);
+					try {
+						Entry entry = future.get();
+						if (entry.spillFile != null) entry.spillFile.delete();
+					} catch (Exception ignored) {
+					}
+				}
+			}
+			boolean outputClosed = false;
+			try {
+				output.close();
+				outputClosed = true;
+			} finally {
+				if (tempFile != null) replace(success && outputClosed);
+			}
+		}
+	}
+
+	/** Replaces the file with the temporary file, unless writing failed or the bytes are the same. */
+	private void replace (boolean success) throws IOException {
+		if (!success || !compare.isDifferent()) {
+			tempFile.delete();
+			if (success) {
+				changed = false;
+				if (DEBUG) debug("scar", "ZIP file unchanged: " + file);
+			}
+			return;
+		}
+		try {
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException ex) {
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			tempFile.delete();
+		}
+	}
+
+	static private int version (Entry entry) {
+		return entry.method == ZipEntry.STORED ? 10 : 20;
+	}
+
+	private void writeShort (int value) throws IOException {
+		buffer[0] = (byte)value;
+		buffer[1] = (byte)(value >> 8);
+		writeBytes(buffer, 2);
+	}
+
+	private void writeInt (long value) throws IOException {
+		buffer[0] = (byte)value;
+		buffer[1] = (byte)(value >> 8);
+		buffer[2] = (byte)(value >> 16);
+		buffer[3] = (byte)(value >> 24);
+		writeBytes(buffer, 4);
+	}
+
+	private void writeLong (long value) throws IOException {
+		writeInt(value);
+		writeInt(value >>> 32);
+	}
+
+	private void writeBytes (byte[] bytes, int count) throws IOException {
+		output.write(bytes, 0, count);
+		offset += count;
+	}
+
+	/** Returns the time in the MS-DOS format used by ZIP files, with 2 second resolution. */
+	static long dosTime (long time) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(time);
+		int year = calendar.get(Calendar.YEAR);
+		if (year < 1980) return (1 << 21) | (1 << 16);
+		return (long)(year - 1980) << 25 | (calendar.get(Calendar.MONTH) + 1) << 21 | calendar.get(Calendar.DAY_OF_MONTH) << 16
+			| calendar.get(Calendar.HOUR_OF_DAY) << 11 | calendar.get(Calendar.MINUTE) << 5 | calendar.get(Calendar.SECOND) >> 1;
+	}
+
+	/** Writes to an output while comparing the bytes to an existing file. */
+	static private class CompareOutputStream extends FilterOutputStream {
+		private final InputStream existing;
+		private byte[] buffer = new byte[64 * 1024];
+		private boolean different, closed;
+
+		CompareOutputStream (OutputStream output, File existingFile) throws IOException {
+			super(output);
+			existing = new FileInputStream(existingFile);
+		}
+
+		public void write (int b) throws IOException {
+			write(new byte[] {(byte)b}, 0, 1);
+		}
+
+		public void write (byte[] bytes, int offset, int count) throws IOException {
+			out.write(bytes, offset, count);
+			if (different) return;
+			if (buffer.length < count) buffer = new byte[count];
+			int read = 0;
+			while (read < count) {
+				int length = existing.read(buffer, read, count - read);
+				if (length == -1) break;
+				read += length;
+			}
+			if (read < count) {
+				different = true;
+				return;
+			}
+			for (int i = 0; i < count; i++) {
+				if (buffer[i] != bytes[offset + i]) {
+					different = true;
+					return;
+				}
+			}
+		}
+
+		/** Returns true if the bytes written differ from the existing file. Valid after {@link #close()}. */
+		boolean isDifferent () {
+			return different;
+		}
+
+		public void close () throws IOException {
+			if (closed) return;
+			closed = true;
+			try {
+				// The existing file is different if it is longer.
+				if (!different && existing.read() != -1) different = true;
+			} finally {
+				try {
+					existing.close();
+				} finally {
+					super.close();
+				}
+			}
+		}
+	}
+
+	/** Entry contents computed by a callable. */
+	static private class Contents {
+		final Callable<byte[]> callable;
+		final long size;
+
+		Contents (Callable<byte[]> callable, long size) {
+			this.callable = callable;
+			this.size = size;
+		}
+	}
+
+	/** Entry contents that may be the same as an entry from a previous version of the archive. */
+	static private class Reuse {
+		/** The bytes or file path. */
+		final Object source;
+		final ZipReader previous;
+		final ZipReader.Entry previousEntry;
+
+		Reuse (Object source, ZipReader previous, ZipReader.Entry previousEntry) {
+			if (previous == null) throw new IllegalArgumentException("previous cannot be null.");
+			this.source = source;
+			this.previous = previous;
+			this.previousEntry = previousEntry;
+		}
+	}
+
+	/** An entry that has been compressed. */
+	static private class Entry {
+		String name;
+		int method;
+		long crc, size, compressedSize, offset, dosTime;
+		boolean jarMagic, reused;
+		/** The compressed bytes, or null if they are in the spill file or another archive. */
+		byte[] data;
+		File spillFile;
+		ZipReader reader;
+		ZipReader.Entry readerEntry;
+	}
+}